@@ -0,0 +1,577 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+/**
+ * Program that reads a C4GameArchive and prints statistics over its games: results and
+ * draw rate, game length, the results of each opening of the first few moves, and the
+ * replies to those openings that win most often for the player making them.
+ * <P>
+ * Usage: <TT>java C4ArchiveAnalytics [-ply <I>n</I>] [-top <I>k</I>] [-json] <I>archive</I></TT>
+ * <P>
+ * The archive is read without being changed, so it may be analyzed while a server appends
+ * to it. It is split into runs of CHUNK_GAMES games that are scanned and tallied in
+ * parallel, then the tallies are merged. Every game is played over on a C4Model, so its
+ * result is the one on the board rather than the one recorded, and games with an illegal
+ * move are counted as invalid and left out. Openings are counted in open-addressing tables
+ * keyed by the board size and the columns played, packed into a long.
+ * <P>
+ * The output is CSV, one table after another separated by blank lines, or a JSON object.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4ArchiveAnalytics {
+
+    /**
+     * Most moves an opening can have
+     */
+    public static final int MAX_PLY = 8;
+
+    /**
+     * Games scanned as one parallel task
+     */
+    public static final int CHUNK_GAMES = 64 * 1024;
+
+    private static final int DEFAULT_PLY = 4;
+    private static final int DEFAULT_TOP = 20;
+    private static final int MAX_MOVES = C4BoardGeometry.MAX_SIZE * C4BoardGeometry.MAX_SIZE;
+
+    /**
+     * Main method that analyzes the archive
+     *
+     * @param args Options, archive file
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int ply = DEFAULT_PLY;
+        int top = DEFAULT_TOP;
+        boolean json = false;
+        String path = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-ply") && i + 1 < args.length) {
+                ply = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-top") && i + 1 < args.length) {
+                top = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-json")) {
+                json = true;
+            } else if (path == null && !args[i].startsWith("-")) {
+                path = args[i];
+            } else {
+                usage();
+            }
+        }
+        if (path == null || ply < 1 || ply > MAX_PLY || top < 0) usage();
+
+        long start = System.nanoTime();
+        Tally tally;
+        try (C4GameArchive archive = new C4GameArchive(Paths.get(path), true)) {
+            tally = analyze(archive, ply);
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        if (json) {
+            printJson(System.out, tally, top);
+        } else {
+            printCsv(System.out, tally, top);
+        }
+        System.err.printf("%d games analyzed in %d ms%n", tally.games + tally.invalid, millis);
+    }
+
+    /**
+     * Tallies every game of an archive, scanning runs of games in parallel
+     * @param archive The archive
+     * @param ply Moves in an opening
+     * @return Merged tally
+     * @throws IOException if a game cannot be read
+     */
+    static Tally analyze (C4GameArchive archive, int ply) throws IOException {
+        int games = archive.size();
+        int chunks = (games + CHUNK_GAMES - 1) / CHUNK_GAMES;
+        try {
+            return IntStream.range(0, chunks).parallel()
+                    .mapToObj(i -> scan(archive, i * CHUNK_GAMES,
+                            Math.min(games, (i + 1) * CHUNK_GAMES), ply))
+                    .reduce(Tally::merge)
+                    .orElseGet(() -> new Tally(ply));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Tallies one run of games
+     */
+    private static Tally scan (C4GameArchive archive, int from, int to, int ply) {
+        Tally tally = new Tally(ply);
+        try {
+            archive.scan(from, to, tally::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return tally;
+    }
+
+    /**
+     * Prints the tables as CSV
+     */
+    private static void printCsv (PrintStream out, Tally tally, int top) {
+        out.println("games,player1_wins,player2_wins,draws,unfinished,invalid,draw_rate,"
+                + "average_length,median_length,max_length");
+        out.printf(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%.4f,%.2f,%d,%d%n", tally.games,
+                tally.results[C4GameRecord.PLAYER1_WON], tally.results[C4GameRecord.PLAYER2_WON],
+                tally.results[C4GameRecord.DRAW], tally.results[C4GameRecord.UNFINISHED],
+                tally.invalid, rate(tally.results[C4GameRecord.DRAW], tally.games),
+                tally.averageLength(), tally.lengthPercentile(50), tally.maxLength());
+        out.println();
+
+        out.println("board,moves,games,player1_wins,player2_wins,draws,player1_win_rate,"
+                + "player2_win_rate,draw_rate");
+        ResultTable openings = tally.openings;
+        for (int slot : openings.topSlots(-1, top)) {
+            long games = openings.games(slot);
+            out.printf(Locale.ROOT, "%s,%s,%d,%d,%d,%d,%.4f,%.4f,%.4f%n",
+                    board(openings.key(slot)), moves(openings.key(slot)), games,
+                    openings.count(slot, C4GameRecord.PLAYER1_WON),
+                    openings.count(slot, C4GameRecord.PLAYER2_WON),
+                    openings.count(slot, C4GameRecord.DRAW),
+                    rate(openings.count(slot, C4GameRecord.PLAYER1_WON), games),
+                    rate(openings.count(slot, C4GameRecord.PLAYER2_WON), games),
+                    rate(openings.count(slot, C4GameRecord.DRAW), games));
+        }
+        out.println();
+
+        out.println("board,moves,reply,games,wins,win_rate,opening_win_rate");
+        for (int slot : tally.refutations(top)) {
+            long key = tally.replies.key(slot);
+            long games = tally.replies.games(slot);
+            long wins = tally.replies.count(slot, tally.replier());
+            out.printf(Locale.ROOT, "%s,%s,%d,%d,%d,%.4f,%.4f%n", board(key), moves(parentKey(key)),
+                    (int) (key & 31), games, wins, rate(wins, games), tally.openingWinRate(key));
+        }
+    }
+
+    /**
+     * Prints the tables as a JSON object
+     */
+    private static void printJson (PrintStream out, Tally tally, int top) {
+        out.println("{");
+        out.printf(Locale.ROOT, "  \"summary\": {\"games\": %d, \"player1_wins\": %d, \"player2_wins\": %d, "
+                        + "\"draws\": %d, \"unfinished\": %d, \"invalid\": %d, \"draw_rate\": %.4f, "
+                        + "\"average_length\": %.2f, \"median_length\": %d, \"max_length\": %d},%n",
+                tally.games, tally.results[C4GameRecord.PLAYER1_WON],
+                tally.results[C4GameRecord.PLAYER2_WON], tally.results[C4GameRecord.DRAW],
+                tally.results[C4GameRecord.UNFINISHED], tally.invalid,
+                rate(tally.results[C4GameRecord.DRAW], tally.games), tally.averageLength(),
+                tally.lengthPercentile(50), tally.maxLength());
+
+        out.println("  \"openings\": [");
+        ResultTable openings = tally.openings;
+        int[] slots = openings.topSlots(-1, top);
+        for (int i = 0; i < slots.length; i++) {
+            int slot = slots[i];
+            long games = openings.games(slot);
+            out.printf(Locale.ROOT, "    {\"board\": \"%s\", \"moves\": \"%s\", \"games\": %d, "
+                            + "\"player1_wins\": %d, \"player2_wins\": %d, \"draws\": %d, "
+                            + "\"player1_win_rate\": %.4f, \"player2_win_rate\": %.4f, "
+                            + "\"draw_rate\": %.4f}%s%n",
+                    board(openings.key(slot)), moves(openings.key(slot)), games,
+                    openings.count(slot, C4GameRecord.PLAYER1_WON),
+                    openings.count(slot, C4GameRecord.PLAYER2_WON),
+                    openings.count(slot, C4GameRecord.DRAW),
+                    rate(openings.count(slot, C4GameRecord.PLAYER1_WON), games),
+                    rate(openings.count(slot, C4GameRecord.PLAYER2_WON), games),
+                    rate(openings.count(slot, C4GameRecord.DRAW), games),
+                    i + 1 < slots.length ? "," : "");
+        }
+        out.println("  ],");
+
+        out.println("  \"refutations\": [");
+        slots = tally.refutations(top);
+        for (int i = 0; i < slots.length; i++) {
+            long key = tally.replies.key(slots[i]);
+            long games = tally.replies.games(slots[i]);
+            long wins = tally.replies.count(slots[i], tally.replier());
+            out.printf(Locale.ROOT, "    {\"board\": \"%s\", \"moves\": \"%s\", \"reply\": %d, \"games\": %d, "
+                            + "\"wins\": %d, \"win_rate\": %.4f, \"opening_win_rate\": %.4f}%s%n",
+                    board(key), moves(parentKey(key)), (int) (key & 31), games, wins,
+                    rate(wins, games), tally.openingWinRate(key), i + 1 < slots.length ? "," : "");
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+
+    /**
+     * Returns a count as a fraction of a total, 0 if the total is 0
+     */
+    private static double rate (long count, long total) {
+        return total == 0 ? 0.0 : (double) count / total;
+    }
+
+    /**
+     * Builds an opening key: the number of moves in the top 4 bits, then the board's rows,
+     * columns and win length, 5 bits each, then the column of each move, 5 bits each, the
+     * last move lowest
+     * @param size Rows, columns and win length, 5 bits each
+     * @param ply Number of moves, at most MAX_PLY + 1
+     * @param columns Columns of the moves
+     * @return Key, never 0
+     */
+    static long openingKey (long size, int ply, long columns) {
+        return (long) ply << 60 | size << 45 | columns;
+    }
+
+    /**
+     * Returns the key of an opening without its last move
+     */
+    static long parentKey (long key) {
+        return openingKey((key >>> 45) & 0x7fff, ply(key) - 1, (key & ((1L << 45) - 1)) >>> 5);
+    }
+
+    /**
+     * Returns the number of moves in an opening key
+     */
+    private static int ply (long key) {
+        return (int) (key >>> 60);
+    }
+
+    /**
+     * Formats the board size of an opening key as RxCxK
+     */
+    private static String board (long key) {
+        long size = key >>> 45;
+        return ((size >>> 10) & 31) + "x" + ((size >>> 5) & 31) + "x" + (size & 31);
+    }
+
+    /**
+     * Formats the columns of an opening key, separated by dashes
+     */
+    private static String moves (long key) {
+        StringBuilder moves = new StringBuilder();
+        for (int i = ply(key) - 1; i >= 0; i--) {
+            moves.append((key >>> (5 * i)) & 31);
+            if (i > 0) {
+                moves.append('-');
+            }
+        }
+        return moves.toString();
+    }
+
+    /**
+     * Prints a usage message and exits
+     */
+    private static void usage () {
+        System.err.println("Usage: java C4ArchiveAnalytics [-ply <n>] [-top <k>] [-json] <archive>");
+        System.exit(1);
+    }
+
+    /**
+     * Statistics over a run of games. Each parallel task fills its own, and they are merged.
+     */
+    static final class Tally {
+
+        private final int ply;
+        private long games;
+        private long invalid;
+        private final long[] results = new long[4];
+        private final long[] lengths = new long[MAX_MOVES + 1];
+        private final ResultTable openings = new ResultTable();
+        private final ResultTable replies = new ResultTable();
+        private C4Model board;
+
+        /**
+         * Constructor for Tally
+         * @param ply Moves in an opening
+         */
+        Tally (int ply) {
+            this.ply = ply;
+        }
+
+        /**
+         * Plays a game over and counts it
+         * @param game The game
+         */
+        void add (C4GameRecord game) {
+            int rows = game.getRows();
+            int cols = game.getCols();
+            int connect = game.getConnect();
+            if (board == null || board.getRows() != rows || board.getCols() != cols
+                    || board.getConnect() != connect) {
+                try {
+                    board = new C4Model(rows, cols, connect);
+                } catch (IllegalArgumentException e) {
+                    invalid++;
+                    return;
+                }
+            } else {
+                board.clearBoard();
+            }
+            int moveCount = game.getMoveCount();
+            long size = rows << 10 | cols << 5 | connect;
+            long columns = 0L;
+            long opening = 0L;
+            long reply = 0L;
+            for (int i = 0; i < moveCount; i++) {
+                int c = game.getColumn(i);
+                int r = board.nextFreeRow(c);
+                if (r < 0 || board.hasWon() != null) {
+                    invalid++;
+                    return;
+                }
+                board.addPlayerToken(i % 2 + 1, r, c);
+                if (i <= ply) {
+                    columns = columns << 5 | c;
+                    if (i == ply - 1) {
+                        opening = openingKey(size, ply, columns);
+                    } else if (i == ply) {
+                        reply = openingKey(size, ply + 1, columns);
+                    }
+                }
+            }
+            int result = C4GameRecord.resultOf(board);
+            games++;
+            results[result]++;
+            lengths[moveCount]++;
+            if (opening != 0L) {
+                openings.add(opening, result);
+            }
+            if (reply != 0L) {
+                replies.add(reply, result);
+            }
+        }
+
+        /**
+         * Adds another tally to this one
+         * @param other The other tally
+         * @return This tally
+         */
+        Tally merge (Tally other) {
+            games += other.games;
+            invalid += other.invalid;
+            for (int i = 0; i < results.length; i++) {
+                results[i] += other.results[i];
+            }
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] += other.lengths[i];
+            }
+            openings.addAll(other.openings);
+            replies.addAll(other.replies);
+            return this;
+        }
+
+        /**
+         * Returns the result that is a win for the player making the reply to an opening
+         */
+        int replier () {
+            return ply % 2 == 0 ? C4GameRecord.PLAYER1_WON : C4GameRecord.PLAYER2_WON;
+        }
+
+        /**
+         * Returns how often the player making a reply wins after its opening, whatever the reply
+         * @param replyKey Key of the reply
+         */
+        double openingWinRate (long replyKey) {
+            int slot = openings.find(parentKey(replyKey));
+            return slot < 0 ? 0.0 : rate(openings.count(slot, replier()), openings.games(slot));
+        }
+
+        /**
+         * Returns the replies that win more often than their openings do for the player making
+         * them, those winning most games first
+         * @param top Most replies to return
+         * @return Slots of the replies in the reply table
+         */
+        int[] refutations (int top) {
+            int winner = replier();
+            int[] candidates = replies.topSlots(winner, replies.size);
+            int n = 0;
+            for (int slot : candidates) {
+                if (n == top) {
+                    break;
+                }
+                double winRate = rate(replies.count(slot, winner), replies.games(slot));
+                if (winRate > openingWinRate(replies.key(slot))) {
+                    candidates[n++] = slot;
+                }
+            }
+            return Arrays.copyOf(candidates, n);
+        }
+
+        /**
+         * Returns the mean number of moves per game
+         */
+        double averageLength () {
+            long moves = 0L;
+            for (int i = 0; i < lengths.length; i++) {
+                moves += i * lengths[i];
+            }
+            return rate(moves, games);
+        }
+
+        /**
+         * Returns the game length that the given percentage of games do not exceed
+         */
+        int lengthPercentile (int percent) {
+            long seen = 0L;
+            for (int i = 0; i < lengths.length; i++) {
+                seen += lengths[i];
+                if (seen * 100 >= games * percent && seen > 0) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the length of the longest game
+         */
+        int maxLength () {
+            for (int i = lengths.length - 1; i > 0; i--) {
+                if (lengths[i] != 0) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Open-addressing table from a non-zero long key to a count of games by result, so that
+     * games are counted without boxing a key or a counter per game
+     */
+    private static final class ResultTable {
+
+        private static final int RESULTS = 4;
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private long[] counts = new long[INITIAL_CAPACITY * RESULTS];
+        private int size;
+
+        /**
+         * Counts a game under a key
+         * @param key Non-zero key
+         * @param result Result of the game
+         */
+        void add (long key, int result) {
+            int slot = slot(key);
+            counts[slot * RESULTS + result]++;
+        }
+
+        /**
+         * Adds every count of another table to this one
+         * @param other The other table
+         */
+        void addAll (ResultTable other) {
+            for (int i = 0; i < other.keys.length; i++) {
+                if (other.keys[i] != 0L) {
+                    int slot = slot(other.keys[i]);
+                    for (int r = 0; r < RESULTS; r++) {
+                        counts[slot * RESULTS + r] += other.counts[i * RESULTS + r];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the slot of a key, or -1 if it is not in the table
+         */
+        int find (long key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; keys[i] != 0L; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the slot of a key, adding it if needed
+         */
+        private int slot (long key) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (keys[i] != 0L) {
+                if (keys[i] == key) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                return slot(key);
+            }
+            keys[i] = key;
+            size++;
+            return i;
+        }
+
+        /**
+         * Doubles the table, moving every key to its new slot
+         */
+        private void grow () {
+            long[] oldKeys = keys;
+            long[] oldCounts = counts;
+            keys = new long[2 * oldKeys.length];
+            counts = new long[2 * oldCounts.length];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != 0L) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (keys[i] != 0L) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    System.arraycopy(oldCounts, j * RESULTS, counts, i * RESULTS, RESULTS);
+                }
+            }
+        }
+
+        private static int hash (long key) {
+            return (int) ((key * 0x9e3779b97f4a7c15L) >>> 32);
+        }
+
+        long key (int slot) {
+            return keys[slot];
+        }
+
+        long count (int slot, int result) {
+            return counts[slot * RESULTS + result];
+        }
+
+        long games (int slot) {
+            long games = 0L;
+            for (int r = 0; r < RESULTS; r++) {
+                games += counts[slot * RESULTS + r];
+            }
+            return games;
+        }
+
+        /**
+         * Returns the slots with the highest counts, highest first
+         * @param result Result to rank by, or -1 to rank by games
+         * @param top Most slots to return
+         * @return Slots
+         */
+        int[] topSlots (int result, int top) {
+            long[] ranked = new long[size];
+            int n = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0L) {
+                    long count = result < 0 ? games(i) : count(i, result);
+                    ranked[n++] = Math.min(count, Integer.MAX_VALUE) << 32 | i;
+                }
+            }
+            Arrays.sort(ranked);
+            int[] slots = new int[Math.min(top, n)];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = (int) ranked[n - 1 - i];
+            }
+            return slots;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary framing of the C4Messages protocol, negotiated at join time.
+ * <P>
+ * A client asks for it by joining with <TT>join <I>name</I> binary</TT>. A server that
+ * supports it answers with the text line <TT>binary</TT>, and from then on both sides
+ * send binary frames; any other answer means the server speaks only text, and the client
+ * carries on with text messages.
+ * <P>
+ * Every frame starts with a 1-byte opcode followed by a 1-byte operand, so number, turn,
+ * add and clear frames are 2 bytes long. The add operand packs the player in the top 2
+ * bits, the row in the next 3 and the column in the low 3; a client's add leaves the row
+ * 0, as the server picks it, and boards bigger than MAX_BOARD rows or columns cannot be
+ * played in binary. A clear operand is the low 8 bits of a clear count: the server's own
+ * count, or the count the client had seen when it asked for the clear. A name frame adds
+ * a length byte and the name's bytes, a session frame adds the 4-byte session number,
+ * most significant byte first, and a size frame carries the rows in its operand and adds
+ * the columns and the win length.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4BinaryProtocol {
+
+    // Opcodes
+    public static final int NUMBER = 1;
+    public static final int NAME = 2;
+    public static final int TURN = 3;
+    public static final int ADD = 4;
+    public static final int CLEAR = 5;
+    public static final int SESSION = 6;
+    public static final int SIZE = 7;
+
+    /**
+     * Size of every frame except name frames
+     */
+    public static final int FRAME_SIZE = 2;
+
+    /**
+     * Size of a session frame
+     */
+    public static final int SESSION_FRAME_SIZE = FRAME_SIZE + 4;
+
+    /**
+     * Size of a size frame
+     */
+    public static final int SIZE_FRAME_SIZE = FRAME_SIZE + 2;
+
+    /**
+     * Most rows or columns of a board whose moves fit an add frame
+     */
+    public static final int MAX_BOARD = 8;
+
+    /**
+     * Longest name a name frame can carry
+     */
+    public static final int MAX_NAME = 255;
+
+    private static final byte[] ANSWER = C4Messages.BINARY.getBytes(StandardCharsets.US_ASCII);
+
+    private C4BinaryProtocol () {
+    }
+
+    /**
+     * Checks if a text line is the server's answer to a request for the binary protocol,
+     * after which both directions of the connection carry frames
+     * @param b Buffer holding the line
+     * @param off Index of the line's first byte
+     * @param len Length of the line, without the newline; a trailing carriage return is ignored
+     * @return true if the line is C4Messages.BINARY, false otherwise
+     */
+    public static boolean isBinaryAnswer (byte[] b, int off, int len) {
+        if (len > 0 && b[off + len - 1] == '\r') {
+            len--;
+        }
+        if (len != ANSWER.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (b[off + i] != ANSWER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the length of a frame without decoding it
+     * @param b Buffer holding the frame
+     * @param off Index of the frame's first byte
+     * @param avail Number of bytes available from off
+     * @return Length of the frame, 0 if the frame is not complete yet, or -1 if the bytes are
+     *         not a frame
+     */
+    public static int frameLength (byte[] b, int off, int avail) {
+        if (avail < FRAME_SIZE) {
+            return 0;
+        }
+        int len;
+        switch (b[off]) {
+            case NUMBER:
+            case TURN:
+            case ADD:
+            case CLEAR:
+                len = FRAME_SIZE;
+                break;
+            case SESSION:
+                len = SESSION_FRAME_SIZE;
+                break;
+            case SIZE:
+                len = SIZE_FRAME_SIZE;
+                break;
+            case NAME:
+                if (avail < FRAME_SIZE + 1) {
+                    return 0;
+                }
+                len = FRAME_SIZE + 1 + (b[off + 2] & 0xff);
+                break;
+            default:
+                return -1;
+        }
+        return avail < len ? 0 : len;
+    }
+
+    /**
+     * Decodes one frame into a message
+     * @param b Buffer holding the frame
+     * @param off Index of the frame's first byte
+     * @param avail Number of bytes available from off
+     * @param msg Message to decode into
+     * @param fromServer true if the frame was sent by the server, so an add carries its row
+     * @return Length of the frame, 0 if the frame is not complete yet, or -1 if the bytes are
+     *         not a frame, in which case the message type is INVALID
+     */
+    public static int decode (byte[] b, int off, int avail, C4Message msg, boolean fromServer) {
+        if (avail < FRAME_SIZE) {
+            return 0;
+        }
+        int operand = b[off + 1] & 0xff;
+        msg.argCount = 0;
+        msg.nameLength = 0;
+        msg.binary = false;
+        switch (b[off]) {
+            case NUMBER:
+                msg.type = C4Message.NUMBER;
+                msg.args[msg.argCount++] = operand;
+                return FRAME_SIZE;
+            case TURN:
+                msg.type = C4Message.TURN;
+                msg.args[msg.argCount++] = operand;
+                return FRAME_SIZE;
+            case ADD:
+                msg.type = C4Message.ADD;
+                msg.args[msg.argCount++] = operand >>> 6;
+                if (fromServer) {
+                    msg.args[msg.argCount++] = (operand >>> 3) & 7;
+                }
+                msg.args[msg.argCount++] = operand & 7;
+                return FRAME_SIZE;
+            case CLEAR:
+                msg.type = C4Message.CLEAR;
+                msg.args[msg.argCount++] = operand;
+                return FRAME_SIZE;
+            case SESSION:
+                if (avail < SESSION_FRAME_SIZE) {
+                    return 0;
+                }
+                msg.type = C4Message.SESSION;
+                msg.args[msg.argCount++] = ((b[off + 2] & 0xff) << 24) | ((b[off + 3] & 0xff) << 16)
+                        | ((b[off + 4] & 0xff) << 8) | (b[off + 5] & 0xff);
+                return SESSION_FRAME_SIZE;
+            case SIZE:
+                if (avail < SIZE_FRAME_SIZE) {
+                    return 0;
+                }
+                msg.type = C4Message.SIZE;
+                msg.args[msg.argCount++] = operand;
+                msg.args[msg.argCount++] = b[off + 2] & 0xff;
+                msg.args[msg.argCount++] = b[off + 3] & 0xff;
+                return SIZE_FRAME_SIZE;
+            case NAME:
+                if (avail < FRAME_SIZE + 1) {
+                    return 0;
+                }
+                int len = b[off + 2] & 0xff;
+                if (avail < FRAME_SIZE + 1 + len) {
+                    return 0;
+                }
+                if (msg.name.length < len) {
+                    msg.name = new byte[len];
+                }
+                System.arraycopy(b, off + 3, msg.name, 0, len);
+                msg.nameLength = len;
+                msg.type = C4Message.NAME;
+                msg.args[msg.argCount++] = operand;
+                return FRAME_SIZE + 1 + len;
+            default:
+                msg.type = C4Message.INVALID;
+                byte[] text = ("binary opcode " + b[off]).getBytes(StandardCharsets.US_ASCII);
+                msg.text = text;
+                msg.textLength = text.length;
+                return -1;
+        }
+    }
+
+    /**
+     * Writes a number frame
+     * @param out Buffer with room for the frame
+     * @param p Player number
+     */
+    public static void putNumber (ByteBuffer out, int p) {
+        out.put((byte) NUMBER).put((byte) p);
+    }
+
+    /**
+     * Writes a turn frame
+     * @param out Buffer with room for the frame
+     * @param p Player to move, or 0 if the game is over
+     */
+    public static void putTurn (ByteBuffer out, int p) {
+        out.put((byte) TURN).put((byte) p);
+    }
+
+    /**
+     * Writes an add frame
+     * @param out Buffer with room for the frame
+     * @param p Player number
+     * @param r Row, or 0 from a client
+     * @param c Column
+     */
+    public static void putAdd (ByteBuffer out, int p, int r, int c) {
+        out.put((byte) ADD).put((byte) ((p << 6) | (r << 3) | c));
+    }
+
+    /**
+     * Writes a clear frame
+     * @param out Buffer with room for the frame
+     * @param clears Number of clears so far, of which the low 8 bits are sent
+     */
+    public static void putClear (ByteBuffer out, int clears) {
+        out.put((byte) CLEAR).put((byte) clears);
+    }
+
+    /**
+     * Writes a session frame
+     * @param out Buffer with room for the frame
+     * @param session Session number
+     */
+    public static void putSession (ByteBuffer out, int session) {
+        out.put((byte) SESSION).put((byte) 0).putInt(session);
+    }
+
+    /**
+     * Writes a size frame
+     * @param out Buffer with room for the frame
+     * @param rows Number of rows
+     * @param cols Number of columns
+     * @param connect Markers in a row needed to win
+     */
+    public static void putSize (ByteBuffer out, int rows, int cols, int connect) {
+        out.put((byte) SIZE).put((byte) rows).put((byte) cols).put((byte) connect);
+    }
+
+    /**
+     * Checks if the moves of a board fit add frames
+     * @param rows Number of rows
+     * @param cols Number of columns
+     * @return true if the board can be played in binary, false otherwise
+     */
+    public static boolean fits (int rows, int cols) {
+        return rows <= MAX_BOARD && cols <= MAX_BOARD;
+    }
+
+    /**
+     * Writes a name frame, cutting the name to at most MAX_NAME bytes without splitting a
+     * character
+     * @param out Buffer with room for nameFrameSize(name) bytes
+     * @param p Player number
+     * @param name Player name, UTF-8 encoded
+     */
+    public static void putName (ByteBuffer out, int p, byte[] name) {
+        int len = nameLength(name);
+        out.put((byte) NAME).put((byte) p).put((byte) len).put(name, 0, len);
+    }
+
+    /**
+     * Returns the size of the name frame for a name
+     * @param name Player name, UTF-8 encoded
+     * @return Frame size in bytes
+     */
+    public static int nameFrameSize (byte[] name) {
+        return FRAME_SIZE + 1 + nameLength(name);
+    }
+
+    /**
+     * Returns how many bytes of a name fit a name frame, backing up to the start of a
+     * UTF-8 character if the name is cut
+     * @param name Player name, UTF-8 encoded
+     * @return Number of bytes to send
+     */
+    private static int nameLength (byte[] name) {
+        if (name.length <= MAX_NAME) {
+            return name.length;
+        }
+        int len = MAX_NAME;
+        while (len > 0 && (name[len] & 0xc0) == 0x80) {
+            len--;
+        }
+        return len;
+    }
+}
@@ -0,0 +1,350 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The bitboard layout of one board size and win length, with the tables worked out for it
+ * once and shared by every C4Model and C4BoardSnapshot of that size.
+ * <P>
+ * Each column occupies <TT>rows + 1</TT> consecutive bits, the lowest bit being the bottom
+ * row; the extra bit at the top of each column is always zero and keeps lines from
+ * wrapping into the next column. A board of at most 64 bits, such as the standard 6x7
+ * board or 7x8, keeps each player's pieces in a single <TT>long</TT>. A bigger board keeps
+ * them in <TT>words</TT> longs, bit b being bit <TT>b % 64</TT> of word <TT>b / 64</TT>,
+ * and shifts across word boundaries to find lines.
+ * <P>
+ * Each layout also holds the random numbers of its Zobrist position hash, one per player
+ * per cell. They are drawn from a fixed seed and the board size, so a position hashes the
+ * same in every run and hashes can be stored.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+final class C4BoardGeometry {
+
+    /**
+     * Most rows or columns a board may have, so that the legal columns fit an int
+     */
+    static final int MAX_SIZE = 31;
+
+    /**
+     * Markers in a row needed to win on the standard board
+     */
+    static final int STANDARD_CONNECT = 4;
+
+    // Row/column steps matching the bit shifts in directions: vertical, horizontal and the
+    // two diagonals.
+    private static final int[] DR = {-1, 0, -1, 1};
+    private static final int[] DC = {0, 1, 1, 1};
+
+    private static final long ZOBRIST_SEED = 0x43344d6f64656cL;
+
+    /**
+     * Layout of the standard board
+     */
+    static final C4BoardGeometry STANDARD =
+            new C4BoardGeometry(C4BoardIntf.ROWS, C4BoardIntf.COLS, STANDARD_CONNECT);
+
+    private static final ConcurrentHashMap<Integer, C4BoardGeometry> layouts = new ConcurrentHashMap<>();
+
+    final int rows;
+    final int cols;
+    final int connect;
+
+    /**
+     * Bits per column, including the empty sentinel bit
+     */
+    final int h;
+
+    /**
+     * Longs per player in a multi-word board, or 1 if a board fits a single long
+     */
+    final int words;
+
+    /**
+     * Bit shifts for the four line directions
+     */
+    final int[] directions;
+
+    /**
+     * Legal-column bitmask with every column open
+     */
+    final int allColumns;
+
+    /**
+     * Single-word boards: bitboard with the bottom cell of every column set
+     */
+    final long bottomMask;
+
+    /**
+     * Single-word boards: bitboard with every cell of column 0 set
+     */
+    final long columnMask;
+
+    /**
+     * Winning lines indexed by [starting bit][direction], holding the (r1, c1, r2, c2)
+     * array copied by hasWon(), or null if no line starts at that bit in that direction
+     */
+    final int[][][] winLines;
+
+    /**
+     * Directions in which a line of the win length fits on the board at all
+     */
+    final int[] lineDirections;
+
+    /**
+     * Position hash of the empty board
+     */
+    final long emptyHash;
+
+    /**
+     * Zobrist numbers XOR'ed into the position hash for a marker on each bit, by player
+     */
+    final long[] player1Keys;
+    final long[] player2Keys;
+
+    /**
+     * Constructor for C4BoardGeometry
+     * @param rows Number of rows
+     * @param cols Number of columns
+     * @param connect Markers in a row needed to win
+     */
+    private C4BoardGeometry (int rows, int cols, int connect) {
+        this.rows = rows;
+        this.cols = cols;
+        this.connect = connect;
+        this.h = rows + 1;
+        int bits = cols * h;
+        this.words = (bits + 63) / 64;
+        this.directions = new int[] {1, h, h + 1, h - 1};
+        this.allColumns = (1 << cols) - 1;
+
+        long bottom = 0L;
+        if (words == 1) {
+            for (int c = 0; c < cols; c++) {
+                bottom |= 1L << (c * h);
+            }
+        }
+        this.bottomMask = bottom;
+        this.columnMask = (1L << rows) - 1;
+
+        winLines = new int[bits][directions.length][];
+        int span = connect - 1;
+        int open = 0;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                for (int d = 0; d < directions.length; d++) {
+                    int r2 = r + span * DR[d];
+                    int c2 = c + span * DC[d];
+                    if (r2 >= 0 && r2 < rows && c2 >= 0 && c2 < cols) {
+                        winLines[bit(r, c)][d] = new int[] {r, c, r2, c2};
+                        open |= 1 << d;
+                    }
+                }
+            }
+        }
+        // Shifts along the other directions could reach past 64 bits, so they are skipped.
+        lineDirections = new int[Integer.bitCount(open)];
+        for (int d = 0, i = 0; d < directions.length; d++) {
+            if ((open & (1 << d)) != 0) {
+                lineDirections[i++] = d;
+            }
+        }
+
+        SplittableRandom random = new SplittableRandom(ZOBRIST_SEED ^ (rows << 16 | cols << 8 | connect));
+        emptyHash = random.nextLong();
+        player1Keys = new long[bits];
+        player2Keys = new long[bits];
+        for (int b = 0; b < bits; b++) {
+            player1Keys[b] = random.nextLong();
+            player2Keys[b] = random.nextLong();
+        }
+    }
+
+    /**
+     * Returns the layout of the given board size, working it out on first use
+     * @param rows Number of rows
+     * @param cols Number of columns
+     * @param connect Markers in a row needed to win
+     * @return Board layout
+     * @throws IllegalArgumentException if the size is not between 1 and MAX_SIZE, or the win
+     *         length is below 2 or longer than both the rows and the columns
+     */
+    static C4BoardGeometry of (int rows, int cols, int connect) {
+        if (rows == STANDARD.rows && cols == STANDARD.cols && connect == STANDARD.connect) {
+            return STANDARD;
+        }
+        if (rows < 1 || rows > MAX_SIZE || cols < 1 || cols > MAX_SIZE) {
+            throw new IllegalArgumentException("Board size must be 1 to " + MAX_SIZE + ": "
+                    + rows + "x" + cols);
+        }
+        if (connect < 2 || connect > Math.max(rows, cols)) {
+            throw new IllegalArgumentException("Cannot connect " + connect + " on a "
+                    + rows + "x" + cols + " board");
+        }
+        return layouts.computeIfAbsent(rows << 16 | cols << 8 | connect,
+                k -> new C4BoardGeometry(rows, cols, connect));
+    }
+
+    /**
+     * Checks if this is the standard 6x7 connect four layout
+     * @return true if standard, false otherwise
+     */
+    boolean isStandard () {
+        return this == STANDARD;
+    }
+
+    /**
+     * Maps a row/column location to its bit index in a bitboard
+     * @param r Row, 0 being the top row
+     * @param c Column
+     * @return Bit index
+     */
+    int bit (int r, int c) {
+        return c * h + (rows - 1 - r);
+    }
+
+    /**
+     * Checks if a row/column location is on the board
+     * @param r Row
+     * @param c Column
+     * @return true if on the board, false otherwise
+     */
+    boolean contains (int r, int c) {
+        return r >= 0 && r < rows && c >= 0 && c < cols;
+    }
+
+    /**
+     * Returns what placing a player's marker on a cell XORs into the position hash
+     * @param playerNum Player number
+     * @param b Bit index of the cell
+     * @param player1 true if the cell holds player 1's marker
+     * @param player2 true if the cell holds player 2's marker
+     * @return Hash change, 0 if the cell already holds the player's marker
+     */
+    long hashChange (int playerNum, int b, boolean player1, boolean player2) {
+        long change = 0L;
+        if (player1 != (playerNum == 1)) {
+            change ^= player1Keys[b];
+        }
+        if (player2 != (playerNum == 2)) {
+            change ^= player2Keys[b];
+        }
+        return change;
+    }
+
+    /**
+     * Works out the position hash of a board from its cells
+     * @param board Board of this layout
+     * @return Position hash
+     */
+    long hash (C4BoardIntf board) {
+        long hash = emptyHash;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                if (board.hasPlayer1Marker(r, c)) {
+                    hash ^= player1Keys[bit(r, c)];
+                } else if (board.hasPlayer2Marker(r, c)) {
+                    hash ^= player2Keys[bit(r, c)];
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Single-word boards: checks if the piece just placed completes a line for its owner.
+     * Runs of 1, 2, 4, ... pieces are found by shifting the board along a direction and
+     * AND'ing it with itself, until the run is the win length.
+     * @param board Bitboard of the player who placed the piece
+     * @param b Bit index of the placed piece
+     * @return The winning line (r1, c1, r2, c2), or null if the piece does not win
+     */
+    int[] findWin (long board, int b) {
+        for (int d : lineDirections) {
+            int shift = directions[d];
+            long runs;
+            if (connect == 4) {
+                // Connect four, by far the most played, with the shifts unrolled.
+                long pairs = board & (board >>> shift);
+                runs = pairs & (pairs >>> (2 * shift));
+            } else {
+                runs = board;
+                int len = 1;
+                while (2 * len <= connect) {
+                    runs &= runs >>> (len * shift);
+                    len *= 2;
+                }
+                if (len < connect) {
+                    runs &= runs >>> ((connect - len) * shift);
+                }
+            }
+            if (runs == 0L) {
+                continue;
+            }
+            // A set bit in runs marks the start of a line; find one covering b.
+            for (int k = 0; k < connect; k++) {
+                int start = b - k * shift;
+                if (start >= 0 && ((runs >>> start) & 1L) != 0L) {
+                    return winLines[start][d];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Multi-word boards: checks if the piece just placed completes a line for its owner, as
+     * findWin(long, int) does, shifting the words of the board together
+     * @param board Bitboard of the player who placed the piece
+     * @param b Bit index of the placed piece
+     * @param runs Scratch array of words longs
+     * @return The winning line (r1, c1, r2, c2), or null if the piece does not win
+     */
+    int[] findWin (long[] board, int b, long[] runs) {
+        for (int d : lineDirections) {
+            int shift = directions[d];
+            System.arraycopy(board, 0, runs, 0, words);
+            int len = 1;
+            while (2 * len <= connect) {
+                andShifted(runs, len * shift);
+                len *= 2;
+            }
+            if (len < connect) {
+                andShifted(runs, (connect - len) * shift);
+            }
+            for (int k = 0; k < connect; k++) {
+                int start = b - k * shift;
+                if (start >= 0 && test(runs, start)) {
+                    return winLines[start][d];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * AND's a multi-word bitboard with itself shifted right, in place
+     * @param board Bitboard
+     * @param n Bits to shift by
+     */
+    private static void andShifted (long[] board, int n) {
+        int w = n >>> 6;
+        int s = n & 63;
+        // Going up, each word only reads itself and the words above it, which are unchanged yet.
+        for (int i = 0; i < board.length; i++) {
+            long lo = i + w < board.length ? board[i + w] : 0L;
+            long hi = i + w + 1 < board.length ? board[i + w + 1] : 0L;
+            board[i] &= s == 0 ? lo : lo >>> s | hi << (64 - s);
+        }
+    }
+
+    /**
+     * Tests one bit of a multi-word bitboard
+     * @param board Bitboard
+     * @param b Bit index
+     * @return true if the bit is set, false otherwise
+     */
+    static boolean test (long[] board, int b) {
+        return ((board[b >>> 6] >>> b) & 1L) != 0L;
+    }
+}
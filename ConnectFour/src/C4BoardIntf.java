@@ -10,15 +10,63 @@ public interface C4BoardIntf
 {
 
     /**
-     * Number of rows.
+     * Number of rows on the standard board.
      */
     public static final int ROWS = 6;
 
     /**
-     * Number of columns.
+     * Number of columns on the standard board.
      */
     public static final int COLS = 7;
 
+    /**
+     * Determine the number of rows of this board. The default is the standard
+     * board's ROWS.
+     *
+     * @return  Number of rows.
+     */
+    public default int getRows()
+    {
+        return ROWS;
+    }
+
+    /**
+     * Determine the number of columns of this board. The default is the
+     * standard board's COLS.
+     *
+     * @return  Number of columns.
+     */
+    public default int getCols()
+    {
+        return COLS;
+    }
+
+    /**
+     * Determine how many markers in a row win on this board. The default is
+     * four.
+     *
+     * @return  Win length.
+     */
+    public default int getConnect()
+    {
+        return 4;
+    }
+
+    /**
+     * Determine a 64-bit hash of the markers on this board: equal for equal
+     * positions on boards of the same size and win length, and different
+     * otherwise but for a chance of about one in 2^64. It is a Zobrist hash,
+     * the XOR of a fixed random number for each marker, so it is the same in
+     * every run. The default works it out from every cell; C4Model keeps it up
+     * to date as markers are placed and returns it at once.
+     *
+     * @return  Position hash.
+     */
+    public default long positionHash()
+    {
+        return C4BoardGeometry.of (getRows(), getCols(), getConnect()).hash (this);
+    }
+
     /**
      * Determine if the given row and column contains player 1's marker.
      *
@@ -44,11 +92,12 @@ public interface C4BoardIntf
      int c);
 
     /**
-     * Determine if one player or the other has won; that is, has four markers
-     * in a row horizontally, vertically, or diagonally. If so, an array of four
-     * integers (r1, c1, r2, c2) is returned, where (r1, c1) is the row/column
-     * of the first of the four markers and (r2, c2) is the row/column of the
-     * last of the four markers. If neither player has won, null is returned.
+     * Determine if one player or the other has won; that is, has getConnect()
+     * markers in a row horizontally, vertically, or diagonally. If so, an array
+     * of four integers (r1, c1, r2, c2) is returned, where (r1, c1) is the
+     * row/column of the first of the markers and (r2, c2) is the row/column of
+     * the last of the markers. If neither player has won, null is returned.
+     * Each call returns a new array, which the caller may change.
      *
      * @return  Array of (r1, c1, r2, c2), or null.
      */
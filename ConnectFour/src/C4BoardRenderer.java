@@ -0,0 +1,227 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+/**
+ * Headless renderer of connect four boards to images and PNG files, for lobby and
+ * spectator pages. Boards are drawn by C4Panel's own painting code, scaled to the wanted
+ * cell size, so thumbnails look just like the game window.
+ * <P>
+ * Rendered images are kept in a bounded cache, least recently used first out, keyed by
+ * the board size, the position hash, the win line and the cell size, so a lookup costs
+ * the same on any board. Boards of any size are drawn. Many games pass through the same
+ * early positions, and each of those is rendered, and encoded as PNG, only once. A renderer
+ * may be shared by any number of threads; rendering happens outside the cache lock.
+ * Images handed out are shared with the cache and must not be drawn on.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4BoardRenderer {
+
+    /**
+     * Default cache capacity in images
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final LinkedHashMap<Key, Entry> cache;
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructor for C4BoardRenderer with the default cache capacity
+     */
+    public C4BoardRenderer () {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor for C4BoardRenderer
+     * @param capacity Most images kept in the cache
+     */
+    public C4BoardRenderer (final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        }
+        cache = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry (Map.Entry<Key, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns an image of the given board
+     * @param board Board to draw
+     * @param cellSize Size of a cell in pixels
+     * @return Image of getCols() * cellSize by getRows() * cellSize pixels, shared with the cache
+     */
+    public BufferedImage render (C4BoardIntf board, int cellSize) {
+        return entry(board, cellSize).image;
+    }
+
+    /**
+     * Returns the given board as a PNG file
+     * @param board Board to draw
+     * @param cellSize Size of a cell in pixels
+     * @return PNG bytes, shared with the cache
+     * @throws IOException if the image cannot be encoded
+     */
+    public byte[] renderPng (C4BoardIntf board, int cellSize) throws IOException {
+        Entry entry = entry(board, cellSize);
+        byte[] png = entry.png;
+        if (png == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ImageIO.write(entry.image, "png", bytes);
+            png = bytes.toByteArray();
+            // Entries are only ever given the same bytes, so a racing write does no harm.
+            entry.png = png;
+        }
+        return png;
+    }
+
+    /**
+     * Writes the given board as a PNG file to a stream
+     * @param board Board to draw
+     * @param cellSize Size of a cell in pixels
+     * @param out Stream to write to
+     * @throws IOException
+     */
+    public void writePng (C4BoardIntf board, int cellSize, OutputStream out) throws IOException {
+        out.write(renderPng(board, cellSize));
+    }
+
+    /**
+     * Returns the number of boards found in the cache
+     * @return Hit count
+     */
+    public synchronized long getHits () {
+        return hits;
+    }
+
+    /**
+     * Returns the number of boards that had to be rendered
+     * @return Miss count
+     */
+    public synchronized long getMisses () {
+        return misses;
+    }
+
+    /**
+     * Returns the number of images in the cache
+     * @return Cache size
+     */
+    public synchronized int getCacheSize () {
+        return cache.size();
+    }
+
+    /**
+     * Finds the cache entry for a board, rendering it if there is none
+     * @param board Board to draw
+     * @param cellSize Size of a cell in pixels
+     * @return Cache entry
+     */
+    private Entry entry (C4BoardIntf board, int cellSize) {
+        if (cellSize < 1) {
+            throw new IllegalArgumentException("Cell size must be positive");
+        }
+        Key key = new Key(board, cellSize);
+        synchronized (this) {
+            Entry entry = cache.get(key);
+            if (entry != null) {
+                hits++;
+                return entry;
+            }
+            misses++;
+        }
+        Entry entry = new Entry(draw(board, cellSize));
+        synchronized (this) {
+            // Another thread may have rendered the same board meanwhile; keep the first.
+            Entry first = cache.putIfAbsent(key, entry);
+            return first != null ? first : entry;
+        }
+    }
+
+    /**
+     * Draws a board with C4Panel's painting code
+     * @param board Board to draw
+     * @param cellSize Size of a cell in pixels
+     * @return New image
+     */
+    private static BufferedImage draw (C4BoardIntf board, int cellSize) {
+        BufferedImage image = new BufferedImage(board.getCols() * cellSize,
+                board.getRows() * cellSize, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = image.createGraphics();
+        try {
+            g2d.setColor(C4Panel.BACKGROUND);
+            g2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            double scale = (double) cellSize / C4Panel.CELL_SIZE;
+            g2d.scale(scale, scale);
+            C4Panel.paintBoard(g2d, board);
+        } finally {
+            g2d.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * Cache key: the board size, its position hash, the win line and the cell size. Two
+     * positions sharing a hash would share an image, a chance of about one in 2^64.
+     */
+    private static final class Key {
+        private final int size;
+        private final long position;
+        private final int winLine;
+        private final int cellSize;
+
+        /**
+         * Constructor for Key
+         * @param board Board
+         * @param cellSize Size of a cell in pixels
+         */
+        Key (C4BoardIntf board, int cellSize) {
+            int[] line = board.hasWon();
+            this.size = board.getRows() << 16 | board.getCols() << 8 | board.getConnect();
+            this.position = board.positionHash();
+            this.winLine = line == null ? -1 : line[0] << 24 | line[1] << 16 | line[2] << 8 | line[3];
+            this.cellSize = cellSize;
+        }
+
+        public boolean equals (Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return position == k.position && size == k.size && winLine == k.winLine
+                    && cellSize == k.cellSize;
+        }
+
+        public int hashCode () {
+            long h = position * 31 + (size * 31L + winLine) * 31L + cellSize;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    /**
+     * Cache entry: the image, and its PNG encoding once asked for
+     */
+    private static final class Entry {
+        final BufferedImage image;
+        volatile byte[] png;
+
+        /**
+         * Constructor for Entry
+         * @param image Rendered board
+         */
+        Entry (BufferedImage image) {
+            this.image = image;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * An immutable copy of a connect four board of any size, as two bitboards in the C4Model
+ * layout plus the win line. A thread that changes a C4Model publishes snapshots of it, so
+ * that other threads, such as the Swing painter, can read a consistent board without
+ * locking and never see a move half applied.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public final class C4BoardSnapshot implements C4BoardIntf {
+
+    /**
+     * Snapshot of the empty standard board
+     */
+    public static final C4BoardSnapshot EMPTY =
+            new C4BoardSnapshot(C4BoardGeometry.STANDARD, 0L, 0L, null, 0,
+                    C4BoardGeometry.STANDARD.emptyHash);
+
+    private final C4BoardGeometry geometry;
+    private final long player1Board;
+    private final long player2Board;
+    private final long[] player1Words;
+    private final long[] player2Words;
+    private final int[] winnerLine;
+    private final int moveCount;
+    private final long positionHash;
+
+    /**
+     * Constructor for C4BoardSnapshot of a single-word board
+     * @param geometry Board layout
+     * @param player1Board Player 1 bitboard
+     * @param player2Board Player 2 bitboard
+     * @param winnerLine Win line (r1, c1, r2, c2), or null; must not be changed afterwards
+     * @param moveCount Number of pieces on the board
+     * @param positionHash Zobrist hash of the position
+     */
+    C4BoardSnapshot (C4BoardGeometry geometry, long player1Board, long player2Board,
+                     int[] winnerLine, int moveCount, long positionHash) {
+        this.geometry = geometry;
+        this.player1Board = player1Board;
+        this.player2Board = player2Board;
+        this.player1Words = null;
+        this.player2Words = null;
+        this.winnerLine = winnerLine;
+        this.moveCount = moveCount;
+        this.positionHash = positionHash;
+    }
+
+    /**
+     * Constructor for C4BoardSnapshot of a multi-word board
+     * @param geometry Board layout
+     * @param player1Words Player 1 bitboard; must not be changed afterwards
+     * @param player2Words Player 2 bitboard; must not be changed afterwards
+     * @param winnerLine Win line (r1, c1, r2, c2), or null; must not be changed afterwards
+     * @param moveCount Number of pieces on the board
+     * @param positionHash Zobrist hash of the position
+     */
+    C4BoardSnapshot (C4BoardGeometry geometry, long[] player1Words, long[] player2Words,
+                     int[] winnerLine, int moveCount, long positionHash) {
+        this.geometry = geometry;
+        this.player1Board = 0L;
+        this.player2Board = 0L;
+        this.player1Words = player1Words;
+        this.player2Words = player2Words;
+        this.winnerLine = winnerLine;
+        this.moveCount = moveCount;
+        this.positionHash = positionHash;
+    }
+
+    /**
+     * Returns the number of rows
+     * @return Rows
+     */
+    public int getRows () {
+        return geometry.rows;
+    }
+
+    /**
+     * Returns the number of columns
+     * @return Columns
+     */
+    public int getCols () {
+        return geometry.cols;
+    }
+
+    /**
+     * Returns how many markers in a row win
+     * @return Win length
+     */
+    public int getConnect () {
+        return geometry.connect;
+    }
+
+    /**
+     * Checks if this is the standard 6x7 connect four board, the only one the solver,
+     * the timed search and the opening book know
+     * @return true if standard, false otherwise
+     */
+    public boolean isStandard () {
+        return geometry.isStandard();
+    }
+
+    /**
+     * Returns player 1's bitboard, in the C4Model layout; single-word boards only
+     * @return Player 1 bitboard
+     */
+    long getPlayer1Board () {
+        return player1Board;
+    }
+
+    /**
+     * Returns player 2's bitboard, in the same layout as getPlayer1Board()
+     * @return Player 2 bitboard
+     */
+    long getPlayer2Board () {
+        return player2Board;
+    }
+
+    /**
+     * Returns the number of pieces on the board
+     * @return Move count
+     */
+    public int getMoveCount () {
+        return moveCount;
+    }
+
+    /**
+     * Returns the Zobrist hash of the position, as the model had it
+     * @return Position hash
+     */
+    public long positionHash () {
+        return positionHash;
+    }
+
+    /**
+     * Checks if the given column has no room for another piece
+     * @param c Column
+     * @return true if the column is full, false otherwise
+     */
+    public boolean isColumnFull (int c) {
+        return hasPlayer1Marker(0, c) || hasPlayer2Marker(0, c);
+    }
+
+    /**
+     * Checks if every cell of the board holds a piece
+     * @return true if the board is full, false otherwise
+     */
+    public boolean isBoardFull () {
+        return moveCount == geometry.rows * geometry.cols;
+    }
+
+    /**
+     * Determine if the given row and column contains player 1's marker.
+     *
+     * @param  r  Row.
+     * @param  c  Column.
+     *
+     * @return  True if (r, c) contains player 1's marker, false otherwise.
+     */
+    public boolean hasPlayer1Marker (int r, int c) {
+        if (!geometry.contains(r, c)) {
+            return false;
+        }
+        if (player1Words != null) {
+            return C4BoardGeometry.test(player1Words, geometry.bit(r, c));
+        }
+        return ((player1Board >>> geometry.bit(r, c)) & 1L) != 0L;
+    }
+
+    /**
+     * Determine if the given row and column contains player 2's marker.
+     *
+     * @param  r  Row.
+     * @param  c  Column.
+     *
+     * @return  True if (r, c) contains player 2's marker, false otherwise.
+     */
+    public boolean hasPlayer2Marker (int r, int c) {
+        if (!geometry.contains(r, c)) {
+            return false;
+        }
+        if (player2Words != null) {
+            return C4BoardGeometry.test(player2Words, geometry.bit(r, c));
+        }
+        return ((player2Board >>> geometry.bit(r, c)) & 1L) != 0L;
+    }
+
+    /**
+     * Determine if one player or the other has won. If so, an array of four
+     * integers (r1, c1, r2, c2) is returned, where (r1, c1) is the row/column
+     * of the first of the getConnect() markers and (r2, c2) is the row/column
+     * of the last of them. If neither player has won, null is returned.
+     *
+     * @return  Array of (r1, c1, r2, c2), or null.
+     */
+    public int[] hasWon() {
+        return winnerLine == null ? null : winnerLine.clone();
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.Arrays;
+
+/**
+ * Program that builds a C4OpeningBook by solving every position up to a given ply.
+ * <P>
+ * Usage: <TT>java C4BookGenerator <I>bookfile</I> <I>maxply</I></TT>
+ * <P>
+ * Positions are enumerated a ply at a time as C4Solver keys, merging mirror images
+ * and dropping positions where the game is already over. Deeper positions are solved
+ * first so that the transposition table is warm when the shallower ones are searched.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4BookGenerator {
+
+    private static final int HEIGHT = C4BoardIntf.ROWS;
+    private static final int WIDTH = C4BoardIntf.COLS;
+    private static final int COLUMN_BITS = HEIGHT + 1;
+
+    /**
+     * Main method that generates the book
+     *
+     * @param args Book file, maximum ply
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) usage();
+        String path = args[0];
+        int maxPly = Integer.parseInt(args[1]);
+
+        long[][] levels = new long[maxPly + 1][];
+        levels[0] = new long[] {0L};
+        int total = 1;
+        for (int ply = 1; ply <= maxPly; ply++) {
+            levels[ply] = expand(levels[ply - 1]);
+            total += levels[ply].length;
+            System.out.printf("ply %d: %d positions%n", ply, levels[ply].length);
+        }
+
+        C4Solver solver = new C4Solver();
+        long[] entries = new long[total];
+        int n = 0;
+        long start = System.currentTimeMillis();
+        for (int ply = maxPly; ply >= 0; ply--) {
+            for (long key : levels[ply]) {
+                long mask = decodeMask(key);
+                entries[n++] = C4OpeningBook.entry(key, solver.solvePosition(key - mask, mask));
+            }
+            System.out.printf("ply %d solved, %d ms, %d nodes%n",
+                    ply, System.currentTimeMillis() - start, solver.getNodeCount());
+        }
+        Arrays.sort(entries, 0, n);
+        C4OpeningBook.write(path, entries, n, maxPly);
+        System.out.printf("%d positions written to %s%n", n, path);
+    }
+
+    /**
+     * Generates the positions one ply deeper than the given ones
+     * @param keys Canonical keys of the positions at one ply
+     * @return Sorted, distinct canonical keys of the positions at the next ply
+     */
+    private static long[] expand (long[] keys) {
+        long[] children = new long[keys.length * WIDTH];
+        int n = 0;
+        for (long key : keys) {
+            long mask = decodeMask(key);
+            long current = key - mask;
+            for (int c = 0; c < WIDTH; c++) {
+                long column = ((1L << HEIGHT) - 1) << (c * COLUMN_BITS);
+                long move = (mask + (1L << (c * COLUMN_BITS))) & column;
+                if (move == 0L || isWin(current | move)) {
+                    continue;
+                }
+                long childMask = mask | move;
+                long childCurrent = current ^ mask;
+                children[n++] = C4OpeningBook.canonicalKey(childCurrent + childMask);
+            }
+        }
+        Arrays.sort(children, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || children[distinct - 1] != children[i]) {
+                children[distinct++] = children[i];
+            }
+        }
+        return Arrays.copyOf(children, distinct);
+    }
+
+    /**
+     * Recovers the bitboard of all pieces from a position key. In each column the key
+     * holds the column's pieces plus the player's pieces, which lies in [2^h - 1, 2^(h+1) - 2]
+     * for a column of height h.
+     * @param key C4Solver position key
+     * @return Bitboard of all pieces
+     */
+    private static long decodeMask (long key) {
+        long mask = 0L;
+        for (int c = 0; c < WIDTH; c++) {
+            int v = (int) (key >>> (c * COLUMN_BITS)) & ((1 << COLUMN_BITS) - 1);
+            int h = 31 - Integer.numberOfLeadingZeros(v + 1);
+            mask |= (long) ((1 << h) - 1) << (c * COLUMN_BITS);
+        }
+        return mask;
+    }
+
+    /**
+     * Checks if a bitboard contains four in a row
+     * @param position Bitboard of one player's pieces
+     * @return true if it does, false otherwise
+     */
+    private static boolean isWin (long position) {
+        int[] shifts = {1, COLUMN_BITS, COLUMN_BITS + 1, COLUMN_BITS - 1};
+        for (int shift : shifts) {
+            long m = position & (position >>> shift);
+            if ((m & (m >>> (2 * shift))) != 0L) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Print a usage message and exit.
+     */
+    private static void usage()
+    {
+        System.err.println ("Usage: java C4BookGenerator <bookfile> <maxply>");
+        System.exit (1);
+    }
+}
@@ -0,0 +1,16 @@
+/**
+ * Receives the messages a C4ServerConnection reads from the server.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public interface C4ConnectionListener {
+
+    /**
+     * Called on the connection's reader thread for each message, in order. The last call has
+     * a CONNECTION_CLOSED message and comes exactly once, when the server closes the
+     * connection, a read fails, or the socket is closed.
+     * @param message The message; only valid during the call, as it is reused for the next one
+     */
+    void messageReceived (C4Message message);
+}
@@ -12,9 +12,11 @@ public class C4Controller {
     public int playerNum = 0;
     private String playerName;
     private String enemyName;
-    private GameState currGameState;
+    private volatile GameState currGameState;
     private C4ServerConnection gameService;
     private C4ModelController modelController;
+    private volatile C4TimedSearch engineSearch;
+    private boolean binaryProtocol;
 
     // Various basic states for the game
     public enum GameState {
@@ -40,13 +42,30 @@ public class C4Controller {
         this.modelController = modelController;
     }
 
+    /**
+     * Registers the engine search thinking about the player's move, so that it can be
+     * cancelled as soon as the turn changes
+     * @param engineSearch The running search, or null when the engine is done
+     */
+    public void setEngineSearch (C4TimedSearch engineSearch) {
+        this.engineSearch = engineSearch;
+    }
+
+    /**
+     * Chooses whether joinGame asks the server for the compact binary protocol
+     * @param binaryProtocol true to ask for C4BinaryProtocol, false for text only
+     */
+    public void useBinaryProtocol (boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
     /**
      * Initiates game communication with a server over a socket connection
      * @throws Exception
      */
     public void joinGame () throws Exception {
-        gameService.sendMessage(C4Messages.JOIN + " " + playerName);
-        new ReaderThread() .start();
+        gameService.join(playerName, binaryProtocol);
+        gameService.startReader(new ServerListener());
     }
 
     /**
@@ -80,37 +99,33 @@ public class C4Controller {
      * @param message Message to process
      * @return GameState enum
      */
-    private GameState processMessage (String message) {
-        String protocol[] = message.split(" ");
-        String srvrMsg = protocol[0];
-
-        // Number Message
-        if (srvrMsg.equals(C4Messages.NUMBER)) {
-            return processNumberMessage(Integer.parseInt(protocol[1]));
-        }
-
-        // Turn Message
-        if (srvrMsg.equals(C4Messages.TURN)) {
-            return processTurnMessage(Integer.parseInt(protocol[1]));
-        }
-
-        // Name message
-        if (srvrMsg.equals(C4Messages.NAME)) {
-            return processNameMessage(protocol[2]);
-        }
-
-        // Add message
-        if (srvrMsg.equals(C4Messages.ADD)) {
-            return processAddMessage(Integer.parseInt(protocol[1]), Integer.parseInt(protocol[2]), Integer.parseInt(protocol[3]));
-        }
-
-        // Clear message
-        if (srvrMsg.equals(C4Messages.CLEAR)) {
-            return processClearMessage();
-        }
-
-        if (srvrMsg.equals(C4Messages.CONNECTION_CLOSED)) {
-            System.exit(0);
+    GameState processMessage (C4Message message) {
+        switch (message.getType()) {
+            case C4Message.NUMBER:
+                return processNumberMessage(message.getArg(0));
+            case C4Message.TURN:
+                return processTurnMessage(message.getArg(0));
+            case C4Message.NAME:
+                return processNameMessage(message);
+            case C4Message.ADD:
+                if (message.getArgCount() == 3) {
+                    return processAddMessage(message.getArg(0), message.getArg(1), message.getArg(2));
+                }
+                break;
+            case C4Message.CLEAR:
+                return processClearMessage();
+            case C4Message.SIZE:
+                try {
+                    return processSizeMessage(message.getArg(0), message.getArg(1), message.getArg(2));
+                } catch (IllegalArgumentException e) {
+                    System.err.println(e.getMessage());
+                }
+                break;
+            case C4Message.CONNECTION_CLOSED:
+                System.exit(0);
+                break;
+            default:
+                break;
         }
 
         System.err.println("Failed to process message: '" + message + "'");
@@ -162,12 +177,12 @@ public class C4Controller {
 
     /**
      * Assigns the enemy name if the given name is not the player's
-     * @param name Player Name
+     * @param message Name message
      * @return WAITING
      */
-    private GameState processNameMessage (String name) {
-        if (!name.equals(playerName)) {
-            enemyName = name;
+    private GameState processNameMessage (C4Message message) {
+        if (!message.nameEquals(playerName)) {
+            enemyName = message.getName();
         }
         return GameState.WAITING;
     }
@@ -195,25 +210,38 @@ public class C4Controller {
     }
 
     /**
-     * A thread class that continuously reads a socket's in stream for any new messages
-     * from the connected server
+     * Tells a C4ModelController which board size the game is played on
+     * @param rows Number of rows
+     * @param cols Number of columns
+     * @param connect Markers in a row needed to win
+     * @return The current game state, unchanged
+     * @throws IllegalArgumentException if the board cannot be played
+     */
+    private GameState processSizeMessage (int rows, int cols, int connect) {
+        modelController.setBoardSize(rows, cols, connect);
+        return currGameState;
+    }
+
+    /**
+     * Handles the messages the connection's reader thread receives from the server
      */
-    private class ReaderThread extends Thread {
-        public void run () {
-            try {
-                while (isGameConnected()) {
-                    currGameState = processMessage(gameService.receiveMessage());
+    private class ServerListener implements C4ConnectionListener {
+        public void messageReceived (C4Message message) {
+            if (message.getType() == C4Message.CONNECTION_CLOSED) {
+                if (gameService.getReadFailure() != null) {
+                    System.err.println(gameService.getReadFailure());
                 }
-                processMessage(C4Messages.CONNECTION_CLOSED);
-            } catch (IOException e) {
-                System.err.println(e);
-            } finally {
                 try {
                     gameService.closeConnection();
                 } catch (IOException e) {
                     System.err.println(e);
                 }
             }
+            currGameState = processMessage(message);
+            C4TimedSearch search = engineSearch;
+            if (search != null && currGameState != GameState.PLAYER_TURN) {
+                search.cancel();
+            }
         }
     }
 }
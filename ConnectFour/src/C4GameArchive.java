@@ -0,0 +1,501 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Append-only archive of finished games, kept in two files: the games themselves, and an
+ * index of where each game starts.
+ * <P>
+ * A game is stored as a record of a few tens of bytes: its length, the board size, the
+ * result, the start time and the duration, the player names, and the column of every move
+ * packed 3 bits per move (4 or 5 bits on boards of more than 8 or 16 columns). The index
+ * holds one 8-byte offset per game and is memory-mapped, so game N is found without a scan
+ * and read with a single positional read.
+ * <P>
+ * Appended games are collected in memory and written in batches of about BATCH_BYTES,
+ * the games before their index entries, so that the files never index a game that is not
+ * all there. When an archive is opened, anything past the last indexed game, left by a
+ * batch that was cut short, is dropped. Games still in memory are lost if the process dies
+ * before flush() or close(). An archive may be shared by any number of threads, and opened
+ * read-only by other processes, such as analytics, while a server appends to it.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4GameArchive implements Closeable {
+
+    /**
+     * Bytes of appended games collected before they are written
+     */
+    public static final int BATCH_BYTES = 64 * 1024;
+
+    /**
+     * Suffix of the index file's name, after the archive file's name
+     */
+    public static final String INDEX_SUFFIX = ".idx";
+
+    /**
+     * Bytes read at a time by scan()
+     */
+    public static final int SCAN_BLOCK = 1024 * 1024;
+
+    private static final int MAGIC = 0x43344741;   // "C4GA"
+    private static final int INDEX_MAGIC = 0x43344749;   // "C4GI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_NAME = 255;
+
+    // Record length prefix, then the fixed fields: rows, columns, win length, result and the
+    // start time.
+    private static final int LENGTH_SIZE = 2;
+    private static final int FIXED_SIZE = 4 + 8;
+
+    // Most games the index can map at once.
+    private static final int MAX_GAMES = (Integer.MAX_VALUE - HEADER_SIZE) / 8;
+
+    private final FileChannel data;
+    private final FileChannel index;
+    private final boolean readOnly;
+    private MappedByteBuffer indexMap;
+    private int mappedGames;
+
+    // Games written to the files, and where the next one goes.
+    private int writtenGames;
+    private long dataEnd;
+
+    // Games appended since the last flush: their records, and the index entries to go with them.
+    private ByteBuffer batch = ByteBuffer.allocate(BATCH_BYTES);
+    private ByteBuffer batchIndex = ByteBuffer.allocate(BATCH_BYTES / 4);
+    private int batchGames;
+
+    /**
+     * Opens an archive, creating it if the files do not exist
+     * @param file Archive file; the index is the same name with INDEX_SUFFIX added
+     * @throws IOException if the files cannot be opened or are not a C4GameArchive
+     */
+    public C4GameArchive (Path file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Opens an archive. A read-only archive holds the games indexed when it was opened and
+     * leaves the files as they are, so it can be read while another process appends.
+     * @param file Archive file; the index is the same name with INDEX_SUFFIX added
+     * @param readOnly true to read the archive without changing it
+     * @throws IOException if the files cannot be opened or are not a C4GameArchive
+     */
+    public C4GameArchive (Path file, boolean readOnly) throws IOException {
+        this.readOnly = readOnly;
+        if (readOnly) {
+            data = FileChannel.open(file, StandardOpenOption.READ);
+        } else {
+            data = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+        try {
+            Path indexFile = Paths.get(file + INDEX_SUFFIX);
+            if (readOnly) {
+                index = FileChannel.open(indexFile, StandardOpenOption.READ);
+            } else {
+                index = FileChannel.open(indexFile, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+        try {
+            recover();
+        } catch (IOException e) {
+            data.close();
+            index.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a game. It is written with the next batch, and can be read back at once.
+     * @param game The game
+     * @return The game's number, counting from 0
+     * @throws IOException if a full batch cannot be written, or the archive is read-only
+     */
+    public synchronized int append (C4GameRecord game) throws IOException {
+        if (readOnly) {
+            throw new IOException("Archive is read-only");
+        }
+        if (writtenGames + batchGames >= MAX_GAMES) {
+            throw new IOException("Archive is full");
+        }
+        byte[] name1 = name(game.getPlayer1());
+        byte[] name2 = name(game.getPlayer2());
+        int bits = bitsPerMove(game.getCols());
+        int moveBytes = (game.getMoveCount() * bits + 7) / 8;
+        int length = FIXED_SIZE + varintSize(game.getEndMillis() - game.getStartMillis())
+                + 2 + name1.length + name2.length + 2 + moveBytes;
+        if (batch.remaining() < LENGTH_SIZE + length) {
+            flush();
+            if (batch.capacity() < LENGTH_SIZE + length) {
+                batch = ByteBuffer.allocate(LENGTH_SIZE + length);
+            }
+        }
+        if (!batchIndex.hasRemaining()) {
+            batchIndex = grow(batchIndex);
+        }
+        batchIndex.putLong(dataEnd + batch.position());
+        batch.putShort((short) length);
+        batch.put((byte) game.getRows()).put((byte) game.getCols()).put((byte) game.getConnect());
+        batch.put((byte) game.getResult());
+        batch.putLong(game.getStartMillis());
+        putVarint(batch, game.getEndMillis() - game.getStartMillis());
+        batch.put((byte) name1.length).put(name1);
+        batch.put((byte) name2.length).put(name2);
+        batch.putShort((short) game.getMoveCount());
+        // Moves fill each byte from its low bits up.
+        long acc = 0L;
+        int accBits = 0;
+        for (int i = 0; i < game.getMoveCount(); i++) {
+            acc |= (long) game.getColumn(i) << accBits;
+            accBits += bits;
+            while (accBits >= 8) {
+                batch.put((byte) acc);
+                acc >>>= 8;
+                accBits -= 8;
+            }
+        }
+        if (accBits > 0) {
+            batch.put((byte) acc);
+        }
+        return writtenGames + batchGames++;
+    }
+
+    /**
+     * Returns the number of games in the archive
+     * @return Game count
+     */
+    public synchronized int size () {
+        return writtenGames + batchGames;
+    }
+
+    /**
+     * Reads a game
+     * @param n Game number, counting from 0
+     * @return The game
+     * @throws IOException if the game cannot be read
+     * @throws IndexOutOfBoundsException if there is no such game
+     */
+    public synchronized C4GameRecord get (int n) throws IOException {
+        if (n < 0 || n >= writtenGames + batchGames) {
+            throw new IndexOutOfBoundsException("No game " + n + " in an archive of " + size());
+        }
+        if (n >= writtenGames) {
+            int i = n - writtenGames;
+            long offset = batchIndex.getLong(i * 8) - dataEnd;
+            return decode(batch.duplicate().position((int) offset));
+        }
+        if (n >= mappedGames) {
+            mapIndex();
+        }
+        long offset = indexMap.getLong(HEADER_SIZE + n * 8);
+        long next = n + 1 < writtenGames ? indexMap.getLong(HEADER_SIZE + (n + 1) * 8) : dataEnd;
+        ByteBuffer record = ByteBuffer.allocate((int) (next - offset));
+        readFully(record, offset);
+        record.flip();
+        return decode(record);
+    }
+
+    /**
+     * Reads a run of games in order, SCAN_BLOCK bytes at a time, for passes over the whole
+     * archive. The reads do not hold the archive's lock, so several threads may scan
+     * different runs at once.
+     * @param from Number of the first game
+     * @param to Number of the game after the last
+     * @param action Called with each game in turn
+     * @throws IOException if a game cannot be read
+     * @throws IndexOutOfBoundsException if the games are not all in the archive
+     */
+    public void scan (int from, int to, Consumer<C4GameRecord> action) throws IOException {
+        MappedByteBuffer map;
+        int written;
+        long end;
+        synchronized (this) {
+            if (from < 0 || from > to || to > writtenGames + batchGames) {
+                throw new IndexOutOfBoundsException("No games " + from + " to " + to
+                        + " in an archive of " + size());
+            }
+            if (to > writtenGames) {
+                flush();
+            }
+            if (to > mappedGames) {
+                mapIndex();
+            }
+            map = indexMap;
+            written = writtenGames;
+            end = dataEnd;
+        }
+        if (from == to) {
+            return;
+        }
+        long position = map.getLong(HEADER_SIZE + from * 8);
+        long stop = to < written ? map.getLong(HEADER_SIZE + to * 8) : end;
+        // A block always holds at least one whole record, the largest being under 64K.
+        ByteBuffer block = ByteBuffer.allocate((int) Math.min(SCAN_BLOCK, stop - position));
+        while (position < stop) {
+            int n = (int) Math.min(block.remaining(), stop - position);
+            block.limit(block.position() + n);
+            readFully(block, position);
+            position += n;
+            block.flip();
+            while (block.remaining() >= LENGTH_SIZE) {
+                int next = block.position() + LENGTH_SIZE + (block.getShort(block.position()) & 0xffff);
+                if (next > block.limit()) {
+                    break;
+                }
+                action.accept(decode(block));
+                block.position(next);
+            }
+            if (position == stop && block.hasRemaining()) {
+                throw new EOFException("Archive ends inside a record");
+            }
+            block.compact();
+        }
+    }
+
+    /**
+     * Writes the games appended since the last flush. If a write fails, the games stay in
+     * the batch, and the next flush writes them again.
+     * @throws IOException
+     */
+    public synchronized void flush () throws IOException {
+        if (batchGames == 0) {
+            return;
+        }
+        writeFully(data, batch.duplicate().flip(), dataEnd);
+        writeFully(index, batchIndex.duplicate().flip(), HEADER_SIZE + (long) writtenGames * 8);
+        dataEnd += batch.position();
+        writtenGames += batchGames;
+        batch.clear();
+        batchIndex.clear();
+        batchGames = 0;
+    }
+
+    /**
+     * Flushes the archive and closes its files
+     * @throws IOException
+     */
+    public synchronized void close () throws IOException {
+        try {
+            flush();
+        } finally {
+            data.close();
+            index.close();
+            indexMap = null;
+        }
+    }
+
+    /**
+     * Returns the bits each move takes on a board
+     * @param cols Number of columns
+     * @return Bits per move, at least 3
+     */
+    static int bitsPerMove (int cols) {
+        return Math.max(3, 32 - Integer.numberOfLeadingZeros(cols - 1));
+    }
+
+    /**
+     * Checks the file headers, writing them to new files, and drops whatever follows the
+     * last indexed game, unless the archive is read-only
+     * @throws IOException if the files are not a C4GameArchive
+     */
+    private void recover () throws IOException {
+        if (data.size() == 0 && index.size() == 0 && !readOnly) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            writeFully(data, header.putInt(MAGIC).putInt(VERSION).flip(), 0);
+            writeFully(index, header.clear().putInt(INDEX_MAGIC).putInt(VERSION).flip(), 0);
+            dataEnd = HEADER_SIZE;
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0, data);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not a game archive");
+        }
+        readFully(header.clear(), 0, index);
+        if (header.getInt(0) != INDEX_MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not a game archive index");
+        }
+        long games = (index.size() - HEADER_SIZE) / 8;
+        if (games > MAX_GAMES) {
+            throw new IOException("Archive index too large");
+        }
+        writtenGames = (int) games;
+        dataEnd = HEADER_SIZE;
+        if (writtenGames > 0) {
+            ByteBuffer entry = ByteBuffer.allocate(8);
+            readFully(entry, HEADER_SIZE + (long) (writtenGames - 1) * 8, index);
+            long last = entry.getLong(0);
+            ByteBuffer length = ByteBuffer.allocate(LENGTH_SIZE);
+            readFully(length, last, data);
+            dataEnd = last + LENGTH_SIZE + (length.getShort(0) & 0xffff);
+            if (dataEnd > data.size()) {
+                throw new IOException("Archive is missing indexed games");
+            }
+        }
+        if (!readOnly) {
+            index.truncate(HEADER_SIZE + (long) writtenGames * 8);
+            data.truncate(dataEnd);
+        }
+    }
+
+    /**
+     * Maps the index of every written game
+     * @throws IOException
+     */
+    private void mapIndex () throws IOException {
+        indexMap = index.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long) writtenGames * 8);
+        mappedGames = writtenGames;
+    }
+
+    /**
+     * Decodes a record
+     * @param record Buffer positioned at the record's length prefix
+     * @return The game
+     * @throws IOException if the record is damaged
+     */
+    private static C4GameRecord decode (ByteBuffer record) throws IOException {
+        try {
+            record.getShort();
+            int rows = record.get() & 0xff;
+            int cols = record.get() & 0xff;
+            int connect = record.get() & 0xff;
+            int result = record.get() & 0xff;
+            long start = record.getLong();
+            long duration = getVarint(record);
+            String player1 = getName(record);
+            String player2 = getName(record);
+            int moveCount = record.getShort() & 0xffff;
+            int bits = bitsPerMove(cols);
+            int[] columns = new int[moveCount];
+            long acc = 0L;
+            int accBits = 0;
+            for (int i = 0; i < moveCount; i++) {
+                while (accBits < bits) {
+                    acc |= (long) (record.get() & 0xff) << accBits;
+                    accBits += 8;
+                }
+                columns[i] = (int) (acc & ((1 << bits) - 1));
+                acc >>>= bits;
+                accBits -= bits;
+            }
+            return new C4GameRecord(rows, cols, connect, player1, player2, result, start,
+                    start + duration, columns, moveCount);
+        } catch (RuntimeException e) {
+            throw new IOException("Damaged game record", e);
+        }
+    }
+
+    /**
+     * Encodes a player name, cutting it to MAX_NAME bytes
+     */
+    private static byte[] name (String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_NAME) {
+            return bytes;
+        }
+        byte[] cut = new byte[MAX_NAME];
+        System.arraycopy(bytes, 0, cut, 0, MAX_NAME);
+        return cut;
+    }
+
+    /**
+     * Decodes a length byte and a player name
+     */
+    private static String getName (ByteBuffer record) {
+        byte[] bytes = new byte[record.get() & 0xff];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the size of a non-negative number written 7 bits per byte
+     */
+    private static int varintSize (long v) {
+        int size = 1;
+        while ((v >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a non-negative number 7 bits per byte, low bits first, the top bit of each
+     * byte but the last set
+     */
+    private static void putVarint (ByteBuffer out, long v) {
+        while ((v & ~0x7fL) != 0) {
+            out.put((byte) (v | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    /**
+     * Reads a number written by putVarint
+     */
+    private static long getVarint (ByteBuffer in) {
+        long v = 0L;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+    }
+
+    /**
+     * Returns a buffer twice the size holding the same bytes, ready to take more
+     */
+    private static ByteBuffer grow (ByteBuffer buf) {
+        ByteBuffer bigger = ByteBuffer.allocate(2 * buf.capacity());
+        buf.flip();
+        return bigger.put(buf);
+    }
+
+    /**
+     * Reads from the archive file until the buffer is full
+     */
+    private void readFully (ByteBuffer buf, long position) throws IOException {
+        readFully(buf, position, data);
+    }
+
+    /**
+     * Reads from a file until the buffer is full
+     * @throws EOFException if the file ends first
+     */
+    private static void readFully (ByteBuffer buf, long position, FileChannel file) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = file.read(buf, position);
+            if (n < 0) {
+                throw new EOFException("Archive ends inside a record");
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Writes the whole buffer to a file
+     */
+    private static void writeFully (FileChannel file, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += file.write(buf, position);
+        }
+    }
+}
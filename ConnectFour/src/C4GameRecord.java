@@ -0,0 +1,190 @@
+import java.util.Arrays;
+
+/**
+ * A finished game as kept in a C4GameArchive: the board it was played on, the players,
+ * the result, when it was played and the column of every move, player 1 moving first.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public final class C4GameRecord {
+
+    // Results
+    public static final int DRAW = 0;
+    public static final int PLAYER1_WON = 1;
+    public static final int PLAYER2_WON = 2;
+    public static final int UNFINISHED = 3;
+
+    private final int rows;
+    private final int cols;
+    private final int connect;
+    private final String player1;
+    private final String player2;
+    private final int result;
+    private final long startMillis;
+    private final long endMillis;
+    private final byte[] columns;
+
+    /**
+     * Constructor for C4GameRecord
+     * @param rows Number of rows
+     * @param cols Number of columns
+     * @param connect Markers in a row needed to win
+     * @param player1 Name of player 1
+     * @param player2 Name of player 2
+     * @param result DRAW, PLAYER1_WON, PLAYER2_WON or UNFINISHED
+     * @param startMillis When the game started, in milliseconds since the epoch
+     * @param endMillis When the game ended, in milliseconds since the epoch
+     * @param columns Column of each move, in order
+     * @param moveCount Number of moves
+     */
+    public C4GameRecord (int rows, int cols, int connect, String player1, String player2, int result,
+                         long startMillis, long endMillis, int[] columns, int moveCount) {
+        this.rows = rows;
+        this.cols = cols;
+        this.connect = connect;
+        this.player1 = player1;
+        this.player2 = player2;
+        this.result = result;
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.columns = new byte[moveCount];
+        for (int i = 0; i < moveCount; i++) {
+            if (columns[i] < 0 || columns[i] >= cols) {
+                throw new IllegalArgumentException("No such column: " + columns[i]);
+            }
+            this.columns[i] = (byte) columns[i];
+        }
+    }
+
+    /**
+     * Works out the result of the game on a board
+     * @param board Board the game was played on
+     * @return PLAYER1_WON or PLAYER2_WON if a player has a line, DRAW if the board is full,
+     *         UNFINISHED otherwise
+     */
+    public static int resultOf (C4Model board) {
+        int[] line = board.hasWon();
+        if (line != null) {
+            return board.hasPlayer1Marker(line[0], line[1]) ? PLAYER1_WON : PLAYER2_WON;
+        }
+        return board.isBoardFull() ? DRAW : UNFINISHED;
+    }
+
+    /**
+     * Returns the number of rows
+     * @return Rows
+     */
+    public int getRows () {
+        return rows;
+    }
+
+    /**
+     * Returns the number of columns
+     * @return Columns
+     */
+    public int getCols () {
+        return cols;
+    }
+
+    /**
+     * Returns how many markers in a row win
+     * @return Win length
+     */
+    public int getConnect () {
+        return connect;
+    }
+
+    /**
+     * Returns the name of player 1
+     * @return Player name
+     */
+    public String getPlayer1 () {
+        return player1;
+    }
+
+    /**
+     * Returns the name of player 2
+     * @return Player name
+     */
+    public String getPlayer2 () {
+        return player2;
+    }
+
+    /**
+     * Returns the result of the game
+     * @return DRAW, PLAYER1_WON, PLAYER2_WON or UNFINISHED
+     */
+    public int getResult () {
+        return result;
+    }
+
+    /**
+     * Returns when the game started
+     * @return Milliseconds since the epoch
+     */
+    public long getStartMillis () {
+        return startMillis;
+    }
+
+    /**
+     * Returns when the game ended
+     * @return Milliseconds since the epoch
+     */
+    public long getEndMillis () {
+        return endMillis;
+    }
+
+    /**
+     * Returns the number of moves
+     * @return Move count
+     */
+    public int getMoveCount () {
+        return columns.length;
+    }
+
+    /**
+     * Returns the column of a move
+     * @param i Move index, 0 being player 1's first move
+     * @return Column
+     */
+    public int getColumn (int i) {
+        return columns[i];
+    }
+
+    /**
+     * Plays the game over on a new board
+     * @return Board with every move played
+     */
+    public C4Model replay () {
+        C4Model board = new C4Model(rows, cols, connect);
+        for (byte c : columns) {
+            board.play(c);
+        }
+        return board;
+    }
+
+    public boolean equals (Object o) {
+        if (!(o instanceof C4GameRecord)) {
+            return false;
+        }
+        C4GameRecord g = (C4GameRecord) o;
+        return rows == g.rows && cols == g.cols && connect == g.connect && result == g.result
+                && startMillis == g.startMillis && endMillis == g.endMillis
+                && player1.equals(g.player1) && player2.equals(g.player2)
+                && Arrays.equals(columns, g.columns);
+    }
+
+    public int hashCode () {
+        return Arrays.hashCode(columns) * 31 + Long.hashCode(startMillis);
+    }
+
+    public String toString () {
+        StringBuilder moves = new StringBuilder();
+        for (byte c : columns) {
+            moves.append(c);
+        }
+        return player1 + " vs " + player2 + " " + rows + "x" + cols + "x" + connect + " result " + result
+                + " " + moves;
+    }
+}
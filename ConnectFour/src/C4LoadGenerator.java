@@ -0,0 +1,283 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Program that puts load on a connect four server with simulated players.
+ * <P>
+ * Usage: <TT>java C4LoadGenerator <I>host</I> <I>port</I> <I>pairs</I> <I>games</I>
+ * [random|engine] [binary]</TT>
+ * <P>
+ * The program connects 2 * <I>pairs</I> players to the server through C4ServerConnection,
+ * each on its own thread, and has every pair play <I>games</I> games over the C4Messages
+ * protocol. A player moves as soon as it is its turn, into a random legal column or, with
+ * <TT>engine</TT>, into the column C4TimedSearch picks within a small node budget. When a
+ * game ends, player 1 asks for a new one. With <TT>binary</TT>, the players ask the server
+ * for C4BinaryProtocol when they join. The players, and the writer thread of each
+ * player's connection, run on virtual threads when the Java runtime has them, and on
+ * platform threads otherwise.
+ * <P>
+ * The program prints the moves and games per second and the latency percentiles of a
+ * move, measured from sending the <TT>add</TT> message to receiving the server's
+ * <TT>add</TT> echo.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4LoadGenerator {
+
+    private static final long ENGINE_MILLIS = 50;
+    private static final long ENGINE_NODES = 2000;
+
+    private static final ThreadFactory threads = newThreadFactory();
+
+    private static final AtomicLong moves = new AtomicLong();
+    private static final AtomicLong games = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+    private static final AtomicLong flushes = new AtomicLong();
+    private static final AtomicLong messagesSent = new AtomicLong();
+
+    /**
+     * Main method that runs the load
+     *
+     * @param args Host, port, number of player pairs, games per pair, move choice, protocol
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4 || args.length > 6) usage();
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int pairs = Integer.parseInt(args[2]);
+        int gameCount = Integer.parseInt(args[3]);
+        boolean engine = false;
+        boolean binary = false;
+        for (int a = 4; a < args.length; a++) {
+            if (args[a].equals("engine")) {
+                engine = true;
+            } else if (args[a].equals("binary")) {
+                binary = true;
+            } else if (!args[a].equals("random")) {
+                usage();
+            }
+        }
+
+        ExecutorService executor = newExecutor();
+        Player[] players = new Player[2 * pairs];
+        long start = System.nanoTime();
+        for (int i = 0; i < players.length; i++) {
+            players[i] = new Player(host, port, "load" + i, gameCount, engine, binary);
+            executor.execute(players[i]);
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int sampleCount = 0;
+        for (Player p : players) {
+            sampleCount += p.latencyCount;
+        }
+        long[] latencies = new long[sampleCount];
+        int n = 0;
+        for (Player p : players) {
+            System.arraycopy(p.latencies, 0, latencies, n, p.latencyCount);
+            n += p.latencyCount;
+        }
+        Arrays.sort(latencies);
+
+        System.out.printf("%d players, %d moves, %d games in %.3f s, %d failed players%n",
+                players.length, moves.get(), games.get(), seconds, failures.get());
+        System.out.printf("%.1f moves/s, %.1f games/s%n", moves.get() / seconds, games.get() / seconds);
+        System.out.printf("%d messages sent in %d flushes, %.2f per flush%n",
+                messagesSent.get(), flushes.get(), messagesSent.get() / (double) Math.max(flushes.get(), 1));
+        if (latencies.length > 0) {
+            System.out.printf("add latency usec: p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+                    percentile(latencies, 0.50) / 1e3, percentile(latencies, 0.90) / 1e3,
+                    percentile(latencies, 0.99) / 1e3, percentile(latencies, 0.999) / 1e3,
+                    latencies[latencies.length - 1] / 1e3);
+        }
+    }
+
+    /**
+     * Creates an executor with one virtual thread per task if the runtime supports them,
+     * or a cached thread pool otherwise
+     * @return The executor
+     */
+    private static ExecutorService newExecutor () {
+        try {
+            return (ExecutorService) MethodHandles.publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                            MethodType.methodType(ExecutorService.class))
+                    .invoke();
+        } catch (Throwable exc) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Creates a factory of virtual threads if the runtime supports them, or of platform
+     * threads otherwise
+     * @return The thread factory
+     */
+    private static ThreadFactory newThreadFactory () {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object virtualBuilder = lookup.findStatic(Thread.class, "ofVirtual",
+                    MethodType.methodType(Class.forName("java.lang.Thread$Builder$OfVirtual"))).invoke();
+            return (ThreadFactory) lookup.findVirtual(builder, "factory",
+                    MethodType.methodType(ThreadFactory.class)).invoke(virtualBuilder);
+        } catch (Throwable exc) {
+            return Thread::new;
+        }
+    }
+
+    /**
+     * Returns the given percentile of a sorted array
+     * @param sorted Sorted samples
+     * @param p Percentile, between 0 and 1
+     * @return Sample at the percentile
+     */
+    private static long percentile (long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+    }
+
+    /**
+     * A simulated player that keeps its own copy of the board
+     */
+    private static class Player implements Runnable {
+        private final String host;
+        private final int port;
+        private final String name;
+        private final int gameCount;
+        private C4Model board = new C4Model();
+        private final C4TimedSearch search;
+        private final boolean binary;
+        private int playerNum;
+        private long sentAt;
+        long[] latencies = new long[64];
+        int latencyCount;
+
+        /**
+         * Constructor for Player
+         * @param host Server host
+         * @param port Server port
+         * @param name Player name
+         * @param gameCount Number of games to play
+         * @param engine true to move with C4TimedSearch, false to move randomly
+         * @param binary true to ask for the binary protocol
+         */
+        Player (String host, int port, String name, int gameCount, boolean engine, boolean binary) {
+            this.host = host;
+            this.port = port;
+            this.name = name;
+            this.gameCount = gameCount;
+            this.search = engine ? new C4TimedSearch() : null;
+            this.binary = binary;
+        }
+
+        public void run () {
+            C4ServerConnection conn = null;
+            try {
+                conn = new C4ServerConnection(host, port, C4ServerConnection.DEFAULT_QUEUE_BYTES,
+                        C4ServerConnection.Backpressure.FAIL, threads);
+                conn.join(name, binary);
+                C4Message message = new C4Message();
+                int played = 0;
+                while (played < gameCount) {
+                    int type = conn.readMessage(message);
+                    if (type == C4Message.CONNECTION_CLOSED) {
+                        throw new IllegalStateException("Server closed the connection");
+                    } else if (type == C4Message.NUMBER) {
+                        playerNum = message.getArg(0);
+                    } else if (type == C4Message.ADD) {
+                        int p = message.getArg(0);
+                        board.addPlayerToken(p, message.getArg(1), message.getArg(2));
+                        if (p == playerNum) {
+                            recordLatency(System.nanoTime() - sentAt);
+                            moves.incrementAndGet();
+                        }
+                    } else if (type == C4Message.CLEAR) {
+                        board.clearBoard();
+                    } else if (type == C4Message.SIZE) {
+                        board = new C4Model(message.getArg(0), message.getArg(1), message.getArg(2));
+                    } else if (type == C4Message.TURN) {
+                        int turn = message.getArg(0);
+                        if (turn == 0) {
+                            played++;
+                            if (playerNum == 1) {
+                                games.incrementAndGet();
+                                if (played < gameCount) {
+                                    conn.sendClear();
+                                }
+                            }
+                        } else if (turn == playerNum) {
+                            int c = chooseColumn();
+                            sentAt = System.nanoTime();
+                            conn.sendAdd(playerNum, c);
+                        }
+                    }
+                }
+            } catch (Exception exc) {
+                if (failures.getAndIncrement() == 0) {
+                    System.err.println(name + ": " + exc);
+                }
+            } finally {
+                if (conn != null) {
+                    try {
+                        conn.closeConnection();
+                    } catch (Exception exc) {
+                        // Already closed.
+                    }
+                    flushes.addAndGet(conn.getFlushCount());
+                    messagesSent.addAndGet(conn.getMessagesFlushed());
+                }
+            }
+        }
+
+        /**
+         * Picks the column to play in the current position
+         * @return A legal column
+         */
+        private int chooseColumn () {
+            if (search != null && board.isStandard()) {
+                int c = search.search(board, ENGINE_MILLIS, ENGINE_NODES);
+                if (c >= 0) {
+                    return c;
+                }
+            }
+            int legal = board.getLegalColumns();
+            int pick = ThreadLocalRandom.current().nextInt(Integer.bitCount(legal));
+            for (int c = 0; ; c++) {
+                if ((legal & (1 << c)) != 0 && pick-- == 0) {
+                    return c;
+                }
+            }
+        }
+
+        /**
+         * Adds a move latency sample
+         * @param nanos Latency in nanoseconds
+         */
+        private void recordLatency (long nanos) {
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, 2 * latencyCount);
+            }
+            latencies[latencyCount++] = nanos;
+        }
+    }
+
+    /**
+     * Prints a usage message and exits
+     */
+    private static void usage () {
+        System.err.println("Usage: java C4LoadGenerator <host> <port> <pairs> <games> [random|engine] [binary]");
+        System.exit(1);
+    }
+}
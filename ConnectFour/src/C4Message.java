@@ -0,0 +1,147 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A decoded C4Messages protocol message. One C4Message is meant to be reused for every
+ * message read from a connection, so that decoding a message allocates nothing.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4Message {
+
+    // Message types
+    public static final int INVALID = 0;
+    public static final int JOIN = 1;
+    public static final int NUMBER = 2;
+    public static final int NAME = 3;
+    public static final int TURN = 4;
+    public static final int ADD = 5;
+    public static final int CLEAR = 6;
+    public static final int CONNECTION_CLOSED = 7;
+    public static final int RESUME = 8;
+    public static final int SESSION = 9;
+    public static final int SIZE = 10;
+
+    private static final int MAX_ARGS = 3;
+
+    int type;
+    final int[] args = new int[MAX_ARGS];
+    int argCount;
+    byte[] name = new byte[32];
+    int nameLength;
+    boolean binary;
+
+    // Text of the last message that failed to decode, for error reports.
+    byte[] text = new byte[64];
+    int textLength;
+
+    /**
+     * Returns the message type
+     * @return One of the type constants
+     */
+    public int getType () {
+        return type;
+    }
+
+    /**
+     * Returns the number of numeric arguments: 1 for number, turn and session, 1 for name
+     * (the player), 3 for a server add, 2 for a client add, 1 for clear (the server's clear
+     * count, or the count a client had seen when it asked for the clear, only its low 8
+     * bits in binary) or 0 for a text clear without a count, 3 for resume (the session,
+     * the number of clears and the number of moves the client has seen), 3 for size (the
+     * rows, the columns and the win length), 0 otherwise
+     * @return Argument count
+     */
+    public int getArgCount () {
+        return argCount;
+    }
+
+    /**
+     * Returns a numeric argument, in message order
+     * @param i Argument index
+     * @return Argument value
+     */
+    public int getArg (int i) {
+        return args[i];
+    }
+
+    /**
+     * Checks if the player name of a name or join message equals the given string,
+     * without allocating unless the string has characters outside ASCII
+     * @param s String to compare with
+     * @return true if equal, false otherwise
+     */
+    public boolean nameEquals (String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch >= 0x80) {
+                return getName().equals(s);
+            }
+            if (i == nameLength || name[i] != ch) {
+                return false;
+            }
+        }
+        return s.length() == nameLength;
+    }
+
+    /**
+     * Checks if a join or resume message asks for the binary protocol
+     * @return true if the message ends with binary, false otherwise
+     */
+    public boolean wantsBinary () {
+        return binary;
+    }
+
+    /**
+     * Returns the player name of a name or join message, decoded from UTF-8. Allocates a
+     * new string.
+     * @return Player name
+     */
+    public String getName () {
+        return new String(name, 0, nameLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Marks this message as the end of the connection
+     */
+    void setConnectionClosed () {
+        type = CONNECTION_CLOSED;
+        argCount = 0;
+        nameLength = 0;
+        binary = false;
+    }
+
+    /**
+     * Returns the message as protocol text. Allocates a new string.
+     * @return Message text
+     */
+    public String toString () {
+        switch (type) {
+            case JOIN:
+                return C4Messages.JOIN + " " + getName() + (binary ? " " + C4Messages.BINARY : "");
+            case NUMBER:
+                return C4Messages.NUMBER + " " + args[0];
+            case NAME:
+                return C4Messages.NAME + " " + args[0] + " " + getName();
+            case TURN:
+                return C4Messages.TURN + " " + args[0];
+            case SESSION:
+                return C4Messages.SESSION + " " + args[0];
+            case SIZE:
+                return C4Messages.SIZE + " " + args[0] + " " + args[1] + " " + args[2];
+            case RESUME:
+                return C4Messages.RESUME + " " + args[0] + " " + args[1] + " " + args[2]
+                        + (binary ? " " + C4Messages.BINARY : "");
+            case ADD:
+                return argCount == 3
+                        ? C4Messages.ADD + " " + args[0] + " " + args[1] + " " + args[2]
+                        : C4Messages.ADD + " " + args[0] + " " + args[1];
+            case CLEAR:
+                return argCount == 1 ? C4Messages.CLEAR + " " + args[0] : C4Messages.CLEAR;
+            case CONNECTION_CLOSED:
+                return C4Messages.CONNECTION_CLOSED;
+            default:
+                return new String(text, 0, textLength, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes C4Messages protocol lines straight from bytes into a reusable C4Message,
+ * without creating strings or other garbage. The message type is picked by a switch on
+ * the first byte, and numbers are decoded digit by digit.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4MessageParser {
+
+    private static final byte[] JOIN = C4Messages.JOIN.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NUMBER = C4Messages.NUMBER.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NAME = C4Messages.NAME.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TURN = C4Messages.TURN.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SESSION = C4Messages.SESSION.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SIZE = C4Messages.SIZE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RESUME = C4Messages.RESUME.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ADD = C4Messages.ADD.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLEAR = C4Messages.CLEAR.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BINARY = (" " + C4Messages.BINARY).getBytes(StandardCharsets.US_ASCII);
+
+    private static final int MAX_DIGITS = 9;
+
+    private C4MessageParser () {
+    }
+
+    /**
+     * Decodes one message line
+     * @param b Buffer holding the line
+     * @param off Index of the line's first byte
+     * @param len Length of the line, without the newline; a trailing carriage return is ignored
+     * @param msg Message to decode into
+     * @return true if the line is a well-formed message, false otherwise, in which case the
+     *         message type is INVALID and the message keeps the line's text
+     */
+    public static boolean parse (byte[] b, int off, int len, C4Message msg) {
+        int end = off + len;
+        if (end > off && b[end - 1] == '\r') {
+            end--;
+        }
+        msg.argCount = 0;
+        msg.nameLength = 0;
+        msg.binary = false;
+        int type = C4Message.INVALID;
+        int pos = -1;
+        if (end > off) {
+            switch (b[off]) {
+                case 'a':
+                    type = C4Message.ADD;
+                    pos = keyword(b, off, end, ADD);
+                    break;
+                case 'c':
+                    type = C4Message.CLEAR;
+                    pos = keyword(b, off, end, CLEAR);
+                    break;
+                case 'j':
+                    type = C4Message.JOIN;
+                    pos = keyword(b, off, end, JOIN);
+                    break;
+                case 'n':
+                    if (end - off > 1 && b[off + 1] == 'u') {
+                        type = C4Message.NUMBER;
+                        pos = keyword(b, off, end, NUMBER);
+                    } else {
+                        type = C4Message.NAME;
+                        pos = keyword(b, off, end, NAME);
+                    }
+                    break;
+                case 'r':
+                    type = C4Message.RESUME;
+                    pos = keyword(b, off, end, RESUME);
+                    break;
+                case 's':
+                    if (end - off > 1 && b[off + 1] == 'i') {
+                        type = C4Message.SIZE;
+                        pos = keyword(b, off, end, SIZE);
+                    } else {
+                        type = C4Message.SESSION;
+                        pos = keyword(b, off, end, SESSION);
+                    }
+                    break;
+                case 't':
+                    type = C4Message.TURN;
+                    pos = keyword(b, off, end, TURN);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        switch (type) {
+            case C4Message.CLEAR:
+                if (pos >= 0 && pos < end) {
+                    pos = number(b, pos, end, msg);
+                }
+                break;
+            case C4Message.NUMBER:
+            case C4Message.TURN:
+            case C4Message.SESSION:
+                pos = number(b, pos, end, msg);
+                break;
+            case C4Message.RESUME:
+                pos = number(b, pos, end, msg);
+                pos = number(b, pos, end, msg);
+                pos = number(b, pos, end, msg);
+                if (pos >= 0 && pos < end) {
+                    pos = keyword(b, pos, end, BINARY);
+                    msg.binary = true;
+                }
+                break;
+            case C4Message.SIZE:
+                pos = number(b, pos, end, msg);
+                pos = number(b, pos, end, msg);
+                pos = number(b, pos, end, msg);
+                break;
+            case C4Message.ADD:
+                pos = number(b, pos, end, msg);
+                pos = number(b, pos, end, msg);
+                if (pos >= 0 && pos < end) {
+                    pos = number(b, pos, end, msg);
+                }
+                break;
+            case C4Message.JOIN:
+                pos = name(b, pos, end, msg);
+                if (pos >= 0 && pos < end) {
+                    pos = keyword(b, pos, end, BINARY);
+                    msg.binary = true;
+                }
+                break;
+            case C4Message.NAME:
+                pos = number(b, pos, end, msg);
+                pos = name(b, pos, end, msg);
+                break;
+            default:
+                pos = -1;
+                break;
+        }
+
+        if (pos != end) {
+            msg.type = C4Message.INVALID;
+            if (msg.text.length < end - off) {
+                msg.text = new byte[end - off];
+            }
+            System.arraycopy(b, off, msg.text, 0, end - off);
+            msg.textLength = end - off;
+            return false;
+        }
+        msg.type = type;
+        return true;
+    }
+
+    /**
+     * Matches a message keyword at the start of a line
+     * @return Index just past the keyword, or -1 if it does not match
+     */
+    private static int keyword (byte[] b, int pos, int end, byte[] word) {
+        if (end - pos < word.length) {
+            return -1;
+        }
+        for (int i = 0; i < word.length; i++) {
+            if (b[pos + i] != word[i]) {
+                return -1;
+            }
+        }
+        return pos + word.length;
+    }
+
+    /**
+     * Decodes a space and a non-negative number into the message's next argument
+     * @return Index just past the number, or -1 if there is none
+     */
+    private static int number (byte[] b, int pos, int end, C4Message msg) {
+        if (pos < 0 || pos >= end || b[pos] != ' ' || msg.argCount == msg.args.length) {
+            return -1;
+        }
+        pos++;
+        int start = pos;
+        int value = 0;
+        while (pos < end && b[pos] >= '0' && b[pos] <= '9' && pos - start < MAX_DIGITS) {
+            value = value * 10 + (b[pos] - '0');
+            pos++;
+        }
+        if (pos == start || (pos < end && b[pos] != ' ')) {
+            return -1;
+        }
+        msg.args[msg.argCount++] = value;
+        return pos;
+    }
+
+    /**
+     * Decodes a space and a player name, which runs to the next space or the end of the line
+     * @return Index just past the name, or -1 if there is none
+     */
+    private static int name (byte[] b, int pos, int end, C4Message msg) {
+        if (pos < 0 || pos >= end || b[pos] != ' ') {
+            return -1;
+        }
+        pos++;
+        int start = pos;
+        while (pos < end && b[pos] != ' ') {
+            pos++;
+        }
+        int len = pos - start;
+        if (len == 0) {
+            return -1;
+        }
+        if (msg.name.length < len) {
+            msg.name = new byte[Math.max(len, 2 * msg.name.length)];
+        }
+        System.arraycopy(b, start, msg.name, 0, len);
+        msg.nameLength = len;
+        return pos;
+    }
+}
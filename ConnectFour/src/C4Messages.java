@@ -9,11 +9,17 @@ public class C4Messages {
 
     // Client --> Server Messages
     public static final String JOIN = "join";
+    public static final String RESUME = "resume";
+
+    // Server --> Client answer to a join that asks for C4BinaryProtocol
+    public static final String BINARY = "binary";
 
     // Server --> Client Messages
     public static final String NUMBER = "number";
     public static final String NAME = "name";
     public static final String TURN = "turn";
+    public static final String SESSION = "session";
+    public static final String SIZE = "size";
 
     // Both Client --> Server & Server --> Client
     public static final String ADD = "add";
@@ -1,109 +1,346 @@
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Main connect four model that maintains the current state of the game board.
+ * <P>
+ * The board is any size up to C4BoardGeometry.MAX_SIZE square, with a win
+ * length of its own; the default is the standard 6x7 connect four board. It is
+ * kept as two bitboards, one per player, laid out by a C4BoardGeometry shared
+ * by every board of the size. Each column occupies <TT>rows + 1</TT>
+ * consecutive bits, the lowest bit being the bottom row; the extra bit at the
+ * top of each column is always zero and keeps lines from wrapping into the next
+ * column. A board of at most 64 bits keeps each player in one <TT>long</TT>;
+ * a bigger board in an array of them. A line is detected by shifting a
+ * player's mask along a direction and AND'ing it with itself.
+ * <P>
+ * The model also keeps a Zobrist hash of the position, updated with an XOR or
+ * two as each piece is placed or taken back, so caches and duplicate checks
+ * have a key for it without reading the board.
  *
  * @author  Alan Kaminsky
  * @version 13-Oct-2014
  */
 public class C4Model implements C4BoardIntf {
 
-    /**
-     * Number of rows.
-     */
-    private static final int ROWS = 6;
+    private final C4BoardGeometry geometry;
 
-    /**
-     * Number of columns.
-     */
-    private static final int COLS = 7;
+    // Single-word boards.
+    private long player1Board;
+
+    private long player2Board;
 
-    private int gameBoard[][];
+    // Multi-word boards, and scratch space for finding lines.
+    private final long[] player1Words;
+    private final long[] player2Words;
+    private final long[] runs;
 
     private int[] winnerLine;
 
+    private long positionHash;
+
+    private int[] heights;
+
+    private int moveCount;
+
+    private int legalColumns;
+
+    // Move stack: bit index of each piece, and the win line before it was placed.
+    private int[] moveBits;
+    private int[][] prevWinnerLines;
+
     /**
-     * Constructor for C4Model, instantiating a new game board.
+     * Constructor for C4Model, instantiating a new standard game board.
      */
     public C4Model () {
-        gameBoard = new int[ROWS][COLS];
+        this(C4BoardGeometry.STANDARD);
+    }
+
+    /**
+     * Constructor for C4Model, instantiating a new game board of the given size
+     * @param rows Number of rows, 1 to C4BoardGeometry.MAX_SIZE
+     * @param cols Number of columns, 1 to C4BoardGeometry.MAX_SIZE
+     * @param connect Markers in a row needed to win, at least 2
+     * @throws IllegalArgumentException if the board cannot be played
+     */
+    public C4Model (int rows, int cols, int connect) {
+        this(C4BoardGeometry.of(rows, cols, connect));
+    }
+
+    /**
+     * Constructor for C4Model
+     * @param geometry Board layout
+     */
+    private C4Model (C4BoardGeometry geometry) {
+        this.geometry = geometry;
+        boolean multiWord = geometry.words > 1;
+        player1Words = multiWord ? new long[geometry.words] : null;
+        player2Words = multiWord ? new long[geometry.words] : null;
+        runs = multiWord ? new long[geometry.words] : null;
         winnerLine = null;
+        positionHash = geometry.emptyHash;
+        heights = new int[geometry.cols];
+        moveCount = 0;
+        legalColumns = geometry.allColumns;
+        moveBits = new int[geometry.rows * geometry.cols];
+        prevWinnerLines = new int[geometry.rows * geometry.cols][];
     }
 
     /**
-     * Adds a player token on the game board
+     * Adds a player token on the game board. Placing a token on an empty cell pushes it
+     * on the move stack so it can be taken back with undo().
      * @param playerNum Player number
      * @param r Row
      * @param c Column
      */
     public void addPlayerToken (int playerNum, int r, int c) {
-        gameBoard[r][c] = playerNum;
-        winnerLine = checkForWin(playerNum, r, c);
+        if (!geometry.contains(r, c)) {
+            throw new IndexOutOfBoundsException("No such cell: (" + r + ", " + c + ")");
+        }
+        int b = geometry.bit(r, c);
+        if (player1Words != null) {
+            addWords(playerNum, b, c);
+            return;
+        }
+        long m = 1L << b;
+        if (((player1Board | player2Board) & m) == 0L) {
+            pushMove(b, c);
+        }
+        positionHash ^= geometry.hashChange(playerNum, b, (player1Board & m) != 0L,
+                (player2Board & m) != 0L);
+        if (playerNum == 1) {
+            player1Board |= m;
+            player2Board &= ~m;
+            winnerLine = checkForWin(player1Board, b);
+        } else {
+            player2Board |= m;
+            player1Board &= ~m;
+            winnerLine = checkForWin(player2Board, b);
+        }
     }
 
     /**
-     * Checks if the given player has entered a win condition
+     * Multi-word boards: adds a player token, as addPlayerToken() does
      * @param playerNum Player number
-     * @param row Row
-     * @param col Column
-     * @return If win condition, an array with the row and columns of the first game peice and last game piece
-     *          that makes up the winning line. If NOT a win condition, return null
+     * @param b Bit index of the cell
+     * @param c Column of the cell
      */
-    private int[] checkForWin (int playerNum, int row, int col) {
-        ArrayList<winMarker> aux = new ArrayList<>();
-        // Vertical Check
-        for (int r = row - 3; r <= row + 3; r++) {
-            if (hasPlayerMarker(playerNum, r, col)) {
-                aux.add(new winMarker(r, col));
-                if (aux.size() == 4) {
-                    return new int[] {aux.get(0).r, aux.get(0).c, aux.get(3).r, aux.get(3).c};
-                }
-            } else {
-                aux.clear();
-            }
+    private void addWords (int playerNum, int b, int c) {
+        int w = b >>> 6;
+        long m = 1L << b;
+        if (((player1Words[w] | player2Words[w]) & m) == 0L) {
+            pushMove(b, c);
         }
-        // Diagonal top-left to bot-Right Check
-        for (int i = - 3; i <= 3; i++) {
-            if (hasPlayerMarker(playerNum, row + i, col + i)) {
-                aux.add(new winMarker(row + i, col + i));
-                if (aux.size() == 4) {
-                    return new int[] {aux.get(0).r, aux.get(0).c, aux.get(3).r, aux.get(3).c};
-                }
-            } else {
-                aux.clear();
+        positionHash ^= geometry.hashChange(playerNum, b, (player1Words[w] & m) != 0L,
+                (player2Words[w] & m) != 0L);
+        long[] mine = playerNum == 1 ? player1Words : player2Words;
+        long[] theirs = playerNum == 1 ? player2Words : player1Words;
+        mine[w] |= m;
+        theirs[w] &= ~m;
+        winnerLine = geometry.findWin(mine, b, runs);
+    }
+
+    /**
+     * Pushes a piece placed on an empty cell on the move stack and raises its column
+     * @param b Bit index of the cell
+     * @param c Column of the cell
+     */
+    private void pushMove (int b, int c) {
+        moveBits[moveCount] = b;
+        prevWinnerLines[moveCount] = winnerLine;
+        moveCount++;
+        int h = b - c * geometry.h + 1;
+        if (h > heights[c]) {
+            heights[c] = h;
+            if (h == geometry.rows) {
+                legalColumns &= ~(1 << c);
             }
         }
-        // Diagonal top-right to bot-left Check
-        for (int i = -3; i <= 3; i++) {
-            if (hasPlayerMarker(playerNum, row + i, col - i)) {
-                aux.add(new winMarker(row + i, col - i));
-                if (aux.size() == 4) {
-                    return new int[] {aux.get(0).r, aux.get(0).c, aux.get(3).r, aux.get(3).c};
-                }
-            } else {
-                aux.clear();
-            }
+    }
+
+    /**
+     * Drops a piece for the player to move into the given column
+     * @param c Column
+     * @return Row the piece landed on
+     * @throws IllegalStateException if the column is full
+     */
+    public int play (int c) {
+        if (heights[c] == geometry.rows) {
+            throw new IllegalStateException("Column " + c + " is full");
         }
-        // Vertical Check
-        for (int c = col - 3; c <= row + 3; c++) {
-            if (hasPlayerMarker(playerNum, row, c)) {
-                aux.add(new winMarker(row, c));
-                if (aux.size() == 4) {
-                    return new int[] {aux.get(0).r, aux.get(0).c, aux.get(3).r, aux.get(3).c};
-                }
-            } else {
-                aux.clear();
+        int r = geometry.rows - 1 - heights[c];
+        addPlayerToken(getCurrentPlayer(), r, c);
+        return r;
+    }
+
+    /**
+     * Takes back the last piece placed on an empty cell, restoring the win line and column height
+     * @throws IllegalStateException if there is no move to take back
+     */
+    public void undo () {
+        if (moveCount == 0) {
+            throw new IllegalStateException("No move to undo");
+        }
+        moveCount--;
+        int b = moveBits[moveCount];
+        long m = ~(1L << b);
+        winnerLine = prevWinnerLines[moveCount];
+        prevWinnerLines[moveCount] = null;
+        int c = b / geometry.h;
+        positionHash ^= hasPlayer1Bit(b) ? geometry.player1Keys[b] : geometry.player2Keys[b];
+        if (player1Words != null) {
+            player1Words[b >>> 6] &= m;
+            player2Words[b >>> 6] &= m;
+            int h = heights[c];
+            while (h > 0 && !isOccupied(c * geometry.h + h - 1)) {
+                h--;
             }
+            heights[c] = h;
+        } else {
+            player1Board &= m;
+            player2Board &= m;
+            long column = ((player1Board | player2Board) >>> (c * geometry.h)) & geometry.columnMask;
+            heights[c] = 64 - Long.numberOfLeadingZeros(column);
         }
-        return null;
+        legalColumns |= 1 << c;
+    }
+
+    /**
+     * Checks if a bit of the board holds player 1's marker
+     * @param b Bit index
+     * @return true if player 1's, false otherwise
+     */
+    private boolean hasPlayer1Bit (int b) {
+        if (player1Words != null) {
+            return C4BoardGeometry.test(player1Words, b);
+        }
+        return ((player1Board >>> b) & 1L) != 0L;
+    }
+
+    /**
+     * Returns the player whose turn it is, assuming player 1 moves first
+     * @return 1 or 2
+     */
+    public int getCurrentPlayer () {
+        return (moveCount & 1) == 0 ? 1 : 2;
+    }
+
+    /**
+     * Returns a key that uniquely identifies the current position. The key is derived
+     * from the bitboards in constant time and, on the standard board, fits in 49 bits.
+     * @return Position key
+     * @throws IllegalStateException if the board does not fit a single long
+     */
+    public long getPositionKey () {
+        if (player1Words != null) {
+            throw new IllegalStateException("No position key for a board of more than 64 bits");
+        }
+        return player1Board + (player1Board | player2Board) + geometry.bottomMask;
+    }
+
+    /**
+     * Returns the Zobrist hash of the position, kept up to date as pieces are placed and
+     * taken back
+     * @return Position hash
+     */
+    public long positionHash () {
+        return positionHash;
+    }
+
+    /**
+     * Returns an immutable copy of the board, to hand to other threads
+     * @return Board snapshot
+     */
+    public C4BoardSnapshot snapshot () {
+        // Win lines come from the geometry's tables, which are never changed, so they can be shared.
+        if (player1Words != null) {
+            return new C4BoardSnapshot(geometry, player1Words.clone(), player2Words.clone(),
+                    winnerLine, moveCount, positionHash);
+        }
+        return new C4BoardSnapshot(geometry, player1Board, player2Board, winnerLine, moveCount,
+                positionHash);
+    }
+
+    /**
+     * Checks if this is the standard 6x7 connect four board, the only one the solver,
+     * the timed search and the opening book know
+     * @return true if standard, false otherwise
+     */
+    public boolean isStandard () {
+        return geometry.isStandard();
+    }
+
+    /**
+     * Returns the number of rows
+     * @return Rows
+     */
+    public int getRows () {
+        return geometry.rows;
+    }
+
+    /**
+     * Returns the number of columns
+     * @return Columns
+     */
+    public int getCols () {
+        return geometry.cols;
+    }
+
+    /**
+     * Returns how many markers in a row win
+     * @return Win length
+     */
+    public int getConnect () {
+        return geometry.connect;
+    }
+
+    /**
+     * Returns player 1's bitboard, laid out column by column from the bottom row
+     * up with one empty sentinel bit above each column; single-word boards only
+     * @return Player 1 bitboard
+     */
+    long getPlayer1Board () {
+        return player1Board;
+    }
+
+    /**
+     * Returns player 2's bitboard, in the same layout as getPlayer1Board()
+     * @return Player 2 bitboard
+     */
+    long getPlayer2Board () {
+        return player2Board;
+    }
+
+    /**
+     * Checks if the piece just placed completes a line of the win length for its owner
+     * @param board Bitboard of the player who placed the piece
+     * @param b Bit index of the placed piece
+     * @return If win condition, an array with the row and columns of the first game peice and last game piece
+     *          that makes up the winning line. If NOT a win condition, return null
+     */
+    private int[] checkForWin (long board, int b) {
+        return geometry.findWin(board, b);
     }
 
     /**
      * Clears the board of game pieces for a new games and resets the winning game line
      */
     public void clearBoard () {
-        gameBoard = new int[ROWS][COLS];
+        player1Board = 0L;
+        player2Board = 0L;
+        if (player1Words != null) {
+            Arrays.fill(player1Words, 0L);
+            Arrays.fill(player2Words, 0L);
+        }
         winnerLine = null;
+        positionHash = geometry.emptyHash;
+        for (int c = 0; c < geometry.cols; c++) {
+            heights[c] = 0;
+        }
+        for (int i = 0; i < moveCount; i++) {
+            prevWinnerLines[i] = null;
+        }
+        moveCount = 0;
+        legalColumns = geometry.allColumns;
     }
 
     /**
@@ -111,30 +348,58 @@ public class C4Model implements C4BoardIntf {
      * @return true if filled, false otherwise
      */
     public boolean checkForBoardFill() {
-        for (int r = 0; r < ROWS; r++) {
-            for (int c = 0; c < COLS; c++) {
-                if (gameBoard[r][c] == 0) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        return isBoardFull();
     }
 
     /**
-     * Checks if the given row/column location has a piece belonging to the specified player
-     * @param playerNum Player Number
-     * @param r Row
+     * Checks if every cell on the board holds a piece
+     * @return true if filled, false otherwise
+     */
+    public boolean isBoardFull () {
+        return moveCount == geometry.rows * geometry.cols;
+    }
+
+    /**
+     * Returns the row a piece dropped into the given column would land on
      * @param c Column
-     * @return true if location has the specified player piece, false otherwise
+     * @return Row, or -1 if the column is full
      */
-    private boolean hasPlayerMarker (int playerNum, int r, int c) {
-        if (r < 0 || r >= ROWS || c < 0 || c >= COLS) {
-            return false;
-        } else if (gameBoard[r][c] == playerNum) {
-            return true;
-        }
-        return false;
+    public int nextFreeRow (int c) {
+        return geometry.rows - 1 - heights[c];
+    }
+
+    /**
+     * Checks if the given column has no room for another piece
+     * @param c Column
+     * @return true if full, false otherwise
+     */
+    public boolean isColumnFull (int c) {
+        return heights[c] == geometry.rows;
+    }
+
+    /**
+     * Returns the columns that can still take a piece
+     * @return Bitmask with bit c set if column c is not full
+     */
+    public int getLegalColumns () {
+        return legalColumns;
+    }
+
+    /**
+     * Returns the number of pieces on the board
+     * @return Move count
+     */
+    public int getMoveCount () {
+        return moveCount;
+    }
+
+    /**
+     * Multi-word boards: checks if either player has a piece on a bit
+     * @param b Bit index
+     * @return true if occupied, false otherwise
+     */
+    private boolean isOccupied (int b) {
+        return C4BoardGeometry.test(player1Words, b) || C4BoardGeometry.test(player2Words, b);
     }
 
     /**
@@ -146,12 +411,13 @@ public class C4Model implements C4BoardIntf {
      * @return  True if (r, c) contains player 1's marker, false otherwise.
      */
     public boolean hasPlayer1Marker (int r, int c) {
-        if (r < 0 || r >= ROWS || c < 0 || c >= COLS) {
+        if (!geometry.contains(r, c)) {
             return false;
-        } else if (gameBoard[r][c] == 1) {
-            return true;
         }
-        return false;
+        if (player1Words != null) {
+            return C4BoardGeometry.test(player1Words, geometry.bit(r, c));
+        }
+        return ((player1Board >>> geometry.bit(r, c)) & 1L) != 0L;
     }
 
     /**
@@ -163,36 +429,25 @@ public class C4Model implements C4BoardIntf {
      * @return  True if (r, c) contains player 2's marker, false otherwise.
      */
     public boolean hasPlayer2Marker (int r, int c) {
-        if (r < 0 || r >= ROWS || c < 0 || c >= COLS) {
+        if (!geometry.contains(r, c)) {
             return false;
-        } else if (gameBoard[r][c] == 2) return true;
-        return false;
+        }
+        if (player2Words != null) {
+            return C4BoardGeometry.test(player2Words, geometry.bit(r, c));
+        }
+        return ((player2Board >>> geometry.bit(r, c)) & 1L) != 0L;
     }
 
     /**
-     * Determine if one player or the other has won; that is, has four markers
-     * in a row horizontally, vertically, or diagonally. If so, an array of four
-     * integers (r1, c1, r2, c2) is returned, where (r1, c1) is the row/column
-     * of the first of the four markers and (r2, c2) is the row/column of the
-     * last of the four markers. If neither player has won, null is returned.
+     * Determine if one player or the other has won; that is, has getConnect()
+     * markers in a row horizontally, vertically, or diagonally. If so, an array
+     * of four integers (r1, c1, r2, c2) is returned, where (r1, c1) is the
+     * row/column of the first of the markers and (r2, c2) is the row/column of
+     * the last of the markers. If neither player has won, null is returned.
      *
      * @return  Array of (r1, c1, r2, c2), or null.
      */
     public int[] hasWon() {
-        return winnerLine;
-    }
-
-    /**
-     * Marker class that hold row and column locations.
-     * Used to store possible win condition lines
-     */
-    private class winMarker {
-        public int r;
-        public int c;
-
-        public winMarker (int r, int c) {
-            this.r = r;
-            this.c = c;
-        }
+        return winnerLine == null ? null : winnerLine.clone();
     }
 }
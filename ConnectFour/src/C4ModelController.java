@@ -1,12 +1,18 @@
 /**
  * Connect four model controller, handles all external model manipulation calls.
+ * <P>
+ * The model is changed only by the thread processing server messages. After each change
+ * the controller publishes an immutable C4BoardSnapshot, which the view and the other
+ * threads read instead of the model, so nothing waits on a lock and nobody sees a move
+ * half applied.
  *
  * @author Alberto Scicali
  * @version 0.1.0
  */
 public class C4ModelController {
-    private C4Model gameModel;
+    private volatile C4Model gameModel;
     private C4UI gameView;
+    private volatile C4BoardSnapshot snapshot;
 
     /**
      * Constructor for C4ModelController, requires a game model to function
@@ -14,10 +20,12 @@ public class C4ModelController {
      */
     public C4ModelController (C4Model gameModel) {
         this.gameModel = gameModel;
+        this.snapshot = gameModel.snapshot();
     }
 
     /**
-     * Attached a given C4UI component to this controller
+     * Attached a given C4UI component to this controller. Without one, the controller only
+     * updates the model, as in benchmarks and other headless uses.
      * @param gameView The game view
      */
     public void addGameView (C4UI gameView) {
@@ -32,7 +40,7 @@ public class C4ModelController {
      */
     public void addPiece (int playerNum, int r, int c) {
         gameModel.addPlayerToken(playerNum, r, c);
-        gameView.repaintBoard();
+        publishBoard();
     }
 
     /**
@@ -40,7 +48,43 @@ public class C4ModelController {
      */
     public void clearBoard () {
         gameModel.clearBoard();
-        gameView.repaintBoard();
+        publishBoard();
+    }
+
+    /**
+     * Switches to an empty board of the given size, unless the game is already played on
+     * a board of that size
+     * @param rows Number of rows
+     * @param cols Number of columns
+     * @param connect Markers in a row needed to win
+     * @throws IllegalArgumentException if the board cannot be played
+     */
+    public void setBoardSize (int rows, int cols, int connect) {
+        C4Model model = gameModel;
+        if (model.getRows() == rows && model.getCols() == cols && model.getConnect() == connect) {
+            return;
+        }
+        gameModel = new C4Model(rows, cols, connect);
+        publishBoard();
+    }
+
+    /**
+     * Returns the board as of the last change
+     * @return Board snapshot
+     */
+    public C4BoardSnapshot getSnapshot () {
+        return snapshot;
+    }
+
+    /**
+     * Publishes a snapshot of the model and hands it to the game view
+     */
+    private void publishBoard () {
+        C4BoardSnapshot board = gameModel.snapshot();
+        snapshot = board;
+        if (gameView != null) {
+            gameView.showBoard(board);
+        }
     }
 
     /**
@@ -48,14 +92,18 @@ public class C4ModelController {
      * @param message Message to send
      */
     public void changeViewMessage (String message) {
-        gameView.changeMessage(message);
+        if (gameView != null) {
+            gameView.changeMessage(message);
+        }
     }
 
     /**
      * Informs GameView to active the new game button
      */
     public void activateClearButton () {
-        gameView.activateNewGameButton();
+        if (gameView != null) {
+            gameView.activateNewGameButton();
+        }
     }
 
     /**
@@ -63,6 +111,31 @@ public class C4ModelController {
      * @return true if it has filled up, false otherwise
      */
     public boolean isBoardFull () {
-        return gameModel.checkForBoardFill();
+        return snapshot.isBoardFull();
+    }
+
+    /**
+     * Checks if the given column of the game board has no room for another piece
+     * @param c Column
+     * @return true if the column is full, false otherwise
+     */
+    public boolean isColumnFull (int c) {
+        return snapshot.isColumnFull(c);
+    }
+
+    /**
+     * Asks the given search for the best column in the game position as last published.
+     * The search reads the snapshot, never the model, so it may run on any thread.
+     * @param search The search to run
+     * @param timeMillis Time budget in milliseconds
+     * @return Best column found, or -1 if the game is over or the board is not the standard
+     *         one the search knows
+     */
+    public int findBestMove (C4TimedSearch search, long timeMillis) {
+        C4BoardSnapshot board = snapshot;
+        if (!board.isStandard()) {
+            return -1;
+        }
+        return search.search(board, timeMillis, 0);
     }
 }
@@ -0,0 +1,171 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Precomputed scores of early connect four positions, read from a memory-mapped file.
+ * <P>
+ * The file starts with a 32-byte header (magic, version, rows, columns, maximum ply,
+ * padding, entry count) followed by the entries, each a big-endian <TT>long</TT>
+ * holding <TT>(key &lt;&lt; 8) | score</TT>, sorted by key. Keys are C4Solver
+ * position keys (current player's pieces plus all pieces), canonicalized to the
+ * smaller of the key and its left-right mirror image. Scores are signed bytes in
+ * C4Solver's convention. Lookups are a binary search over the mapped file, so
+ * opening the book does not read it into the heap.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4OpeningBook {
+
+    /**
+     * Returned by lookup() for positions not in the book.
+     */
+    public static final int NOT_FOUND = Integer.MIN_VALUE;
+
+    private static final int MAGIC = 0x4334424B; // "C4BK"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int COLUMN_BITS = C4BoardIntf.ROWS + 1;
+
+    private final LongBuffer entries;
+    private final int maxPly;
+
+    /**
+     * Constructor for C4OpeningBook, used by open()
+     * @param entries Sorted entries
+     * @param maxPly Deepest ply in the book
+     */
+    private C4OpeningBook (LongBuffer entries, int maxPly) {
+        this.entries = entries;
+        this.maxPly = maxPly;
+    }
+
+    /**
+     * Memory-maps an opening book file
+     * @param path Book file
+     * @return The opening book
+     * @throws IOException if the file cannot be read or is not a book for this board size
+     */
+    public static C4OpeningBook open (String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+                throw new IOException("Not an opening book: " + path);
+            }
+            if (buf.getInt(8) != C4BoardIntf.ROWS || buf.getInt(12) != C4BoardIntf.COLS) {
+                throw new IOException("Opening book is for a " + buf.getInt(8) + "x" + buf.getInt(12) + " board");
+            }
+            long count = buf.getLong(24);
+            if (HEADER_SIZE + count * 8 != buf.limit()) {
+                throw new IOException("Truncated opening book: " + path);
+            }
+            buf.position(HEADER_SIZE);
+            return new C4OpeningBook(buf.slice().asLongBuffer(), buf.getInt(16));
+        }
+    }
+
+    /**
+     * Looks up the score of a position
+     * @param key C4Solver position key
+     * @return Score for the player to move, or NOT_FOUND
+     */
+    public int lookup (long key) {
+        long k = canonicalKey(key);
+        int lo = 0;
+        int hi = entries.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midKey = entries.get(mid) >>> 8;
+            if (midKey < k) {
+                lo = mid + 1;
+            } else if (midKey > k) {
+                hi = mid - 1;
+            } else {
+                return (byte) entries.get(mid);
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Returns the deepest ply stored in the book
+     * @return Number of pieces on the board in the book's last positions
+     */
+    public int getMaxPly () {
+        return maxPly;
+    }
+
+    /**
+     * Returns the number of positions in the book
+     * @return Entry count
+     */
+    public int getSize () {
+        return entries.limit();
+    }
+
+    /**
+     * Packs a position key and its score into a book entry
+     * @param key C4Solver position key
+     * @param score Score for the player to move
+     * @return Entry, ordered by canonical key
+     */
+    static long entry (long key, int score) {
+        return (canonicalKey(key) << 8) | (score & 0xFF);
+    }
+
+    /**
+     * Returns the smaller of a key and the key of its mirror image
+     * @param key C4Solver position key
+     * @return Canonical key
+     */
+    static long canonicalKey (long key) {
+        return Math.min(key, mirror(key));
+    }
+
+    /**
+     * Flips a key left to right. A key adds up the pieces of one column without carrying
+     * into the next, so its columns can be swapped like those of a bitboard.
+     * @param key C4Solver position key
+     * @return Mirrored key
+     */
+    static long mirror (long key) {
+        long columnMask = (1L << COLUMN_BITS) - 1;
+        long m = 0L;
+        for (int c = 0; c < C4BoardIntf.COLS; c++) {
+            long column = (key >>> (c * COLUMN_BITS)) & columnMask;
+            m |= column << ((C4BoardIntf.COLS - 1 - c) * COLUMN_BITS);
+        }
+        return m;
+    }
+
+    /**
+     * Writes an opening book file
+     * @param path Book file
+     * @param sorted Entries from entry(), sorted and free of duplicate keys
+     * @param count Number of entries to write
+     * @param maxPly Deepest ply in the book
+     * @throws IOException if the file cannot be written
+     */
+    static void write (String path, long[] sorted, int count, int maxPly) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(path), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(C4BoardIntf.ROWS);
+            out.writeInt(C4BoardIntf.COLS);
+            out.writeInt(maxPly);
+            out.writeInt(0);
+            out.writeLong(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(sorted[i]);
+            }
+        }
+    }
+}
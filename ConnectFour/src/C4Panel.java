@@ -3,15 +3,36 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Window;
 import java.awt.event.MouseEvent;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 /**
  * Class C4Panel provides a widget for displaying a Connect Four Board in a 3.
+ * <P>
+ * In cached mode, the panel keeps an image of the board. The empty board is
+ * rendered once; after that, repaintCell() redraws only the changed cell into
+ * the image and repaints only that cell's region, and a paint copies the
+ * clipped part of the image and draws the win line if any.
+ * <P>
+ * The panel never locks the board. A board changed by another thread is shown
+ * by passing immutable snapshots of it to setBoard(); snapshots arriving faster
+ * than the event dispatch thread takes them are coalesced into one update,
+ * which repaints only the cells that differ.
+ * <P>
+ * The panel takes its size from the board, so boards other than the standard
+ * one are shown as they are. A board of another size passed to setBoard()
+ * resizes the panel and repacks its window.
  *
  * @author  Alan Kaminsky
  * @version 13-Oct-2014
@@ -35,9 +56,40 @@ public class C4Panel
     private static final BasicStroke WIN_STROKE =
             new BasicStroke (D/4, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
 
+// Package-private constants.
+
+    /**
+     * Size of a cell in pixels.
+     */
+    static final int CELL_SIZE = W;
+
+    /**
+     * Background color of the board.
+     */
+    static final Color BACKGROUND = BG_COLOR;
+
 // Hidden data members.
 
     private C4BoardIntf board;
+    private boolean cached;
+
+    // Size of the board shown, in cells.
+    private volatile int rows;
+    private volatile int cols;
+
+    // The board most recently passed to setBoard(), and whether an update to
+    // show it is already waiting on the event dispatch thread.
+    private volatile C4BoardIntf nextBoard;
+    private final AtomicBoolean updatePending = new AtomicBoolean();
+
+    // Cached mode: the empty board, the board as last painted, the cells changed
+    // since (bit r*cols + c) or whether they all did, and the win line drawn over
+    // the board. The changed cells are guarded by their own lock.
+    private BufferedImage background;
+    private BufferedImage image;
+    private final BitSet dirtyCells = new BitSet();
+    private boolean allDirty = true;
+    private int[] winLine;
 
 // Exported constructors.
 
@@ -49,14 +101,31 @@ public class C4Panel
      */
     public C4Panel
     (C4BoardIntf board)
+    {
+        this (board, false);
+    }
+
+    /**
+     * Construct a new Connect Four panel, in full or cached rendering mode.
+     *
+     * @param  board   Connect Four board object to be queried when displaying
+     *                 the panel. Unless it is immutable, it must only change on
+     *                 the event dispatch thread.
+     * @param  cached  True to keep a cached image of the board and redraw only
+     *                 the cells passed to repaintCell(), false to redraw the
+     *                 whole board on every paint.
+     */
+    public C4Panel
+    (C4BoardIntf board,
+     boolean cached)
     {
         super();
         this.board = board;
+        this.cached = cached;
+        this.rows = board.getRows();
+        this.cols = board.getCols();
 
-        Dimension dim = new Dimension (W*C4BoardIntf.COLS, W*C4BoardIntf.ROWS);
-        setMinimumSize (dim);
-        setPreferredSize (dim);
-        setMaximumSize (dim);
+        setDimensions();
         setBackground (BG_COLOR);
     }
 
@@ -88,6 +157,111 @@ public class C4Panel
         return e.getX()/W;
     }
 
+    /**
+     * Display the given board from now on. May be called from any thread; the
+     * board must not change afterwards. The painter switches to the latest
+     * board given at its next update, repainting the cells that changed.
+     *
+     * @param  board  Immutable Connect Four board, such as a C4BoardSnapshot.
+     */
+    public void setBoard
+    (C4BoardIntf board)
+    {
+        nextBoard = board;
+        if (updatePending.compareAndSet (false, true))
+            SwingUtilities.invokeLater (this::updateBoard);
+    }
+
+    /**
+     * Repaint one cell of this Connect Four panel after its marker changed. In
+     * cached mode, only the cell's region is repainted, plus the win line if
+     * the change won the game. May be called from any thread.
+     *
+     * @param  r  Row.
+     * @param  c  Column.
+     */
+    public void repaintCell
+    (int r,
+     int c)
+    {
+        if (! cached)
+        {
+            repaint();
+            return;
+        }
+        synchronized (dirtyCells)
+        {
+            dirtyCells.set (r*cols + c);
+        }
+        repaint (c*W, r*W, W, W);
+    }
+
+    /**
+     * Repaint the whole Connect Four panel, as after the board was cleared.
+     * May be called from any thread.
+     */
+    public void repaintBoard()
+    {
+        synchronized (dirtyCells)
+        {
+            allDirty = true;
+        }
+        repaint();
+    }
+
+// Package-private operations.
+
+    /**
+     * Paint the markers and win line of a Connect Four board of any size at
+     * this panel's geometry, CELL_SIZE pixels per cell, over a background
+     * already filled with BACKGROUND. Used by the panel and by C4BoardRenderer.
+     *
+     * @param  g2d    Graphics context.
+     * @param  board  Connect Four board.
+     */
+    static void paintBoard
+    (Graphics2D g2d,
+     C4BoardIntf board)
+    {
+        Ellipse2D.Double ellipse = new Ellipse2D.Double();
+        ellipse.width = D;
+        ellipse.height = D;
+        Color color = null;
+        // Draw spots.
+        int rows = board.getRows();
+        int cols = board.getCols();
+        for (int r = 0; r < rows; ++ r)
+        {
+            for (int c = 0; c < cols; ++ c)
+            {
+                if (board.hasPlayer1Marker (r, c))
+                    color = P1_COLOR;
+                else if (board.hasPlayer2Marker (r, c))
+                    color = P2_COLOR;
+                else
+                    color = NO_COLOR;
+                ellipse.x = c*W + OFFSET;
+                ellipse.y = r*W + OFFSET;
+                g2d.setColor (color);
+                g2d.fill (ellipse);
+            }
+        }
+
+        // Draw win line if any.
+        int[] coord = board.hasWon();
+        if (coord != null)
+        {
+            g2d.setStroke (WIN_STROKE);
+            g2d.setColor (WIN_COLOR);
+            Line2D.Double line = new Line2D.Double();
+            line.x1 = (coord[1] + 0.5)*W;
+            line.y1 = (coord[0] + 0.5)*W;
+            line.x2 = (coord[3] + 0.5)*W;
+            line.y2 = (coord[2] + 0.5)*W;
+            g2d.draw (line);
+        }
+    }
+
 // Hidden operations.
 
     /**
@@ -99,6 +273,11 @@ public class C4Panel
     (Graphics g)
     {
         super.paintComponent (g);
+        if (cached)
+        {
+            paintCached (g);
+            return;
+        }
 
         // Clone graphics context.
         Graphics2D g2d = (Graphics2D) g.create();
@@ -109,44 +288,241 @@ public class C4Panel
                         RenderingHints.VALUE_ANTIALIAS_ON);
 
         // Display board.
-        Ellipse2D.Double ellipse = new Ellipse2D.Double();
-        ellipse.width = D;
-        ellipse.height = D;
-        Color color = null;
-        synchronized (board)
+        paintBoard (g2d, board);
+        g2d.dispose();
+    }
+
+    /**
+     * Switch to the latest board given to setBoard(), on the event dispatch
+     * thread.
+     */
+    private void updateBoard()
+    {
+        updatePending.set (false);
+        C4BoardIntf old = board;
+        board = nextBoard;
+        if (board.getRows() != rows || board.getCols() != cols)
+        {
+            resize();
+            return;
+        }
+        if (! cached)
+        {
+            repaint();
+            return;
+        }
+        for (int r = 0; r < rows; ++ r)
+            for (int c = 0; c < cols; ++ c)
+                if (old.hasPlayer1Marker (r, c) != board.hasPlayer1Marker (r, c) ||
+                        old.hasPlayer2Marker (r, c) != board.hasPlayer2Marker (r, c))
+                    repaintCell (r, c);
+    }
+
+    /**
+     * Take on the size of a board of another size, dropping the cached images,
+     * and repack the window holding this panel.
+     */
+    private void resize()
+    {
+        rows = board.getRows();
+        cols = board.getCols();
+        background = null;
+        image = null;
+        winLine = null;
+        synchronized (dirtyCells)
+        {
+            dirtyCells.clear();
+            allDirty = true;
+        }
+        setDimensions();
+        revalidate();
+        Window window = SwingUtilities.getWindowAncestor (this);
+        if (window != null)
+            window.pack();
+        repaint();
+    }
+
+    /**
+     * Set the minimum, preferred and maximum size of this panel to fit the
+     * board.
+     */
+    private void setDimensions()
+    {
+        Dimension dim = new Dimension (W*cols, W*rows);
+        setMinimumSize (dim);
+        setPreferredSize (dim);
+        setMaximumSize (dim);
+    }
+
+    /**
+     * Paint this Connect Four panel from the cached image, first bringing the
+     * changed cells up to date.
+     *
+     * @param  g  Graphics context.
+     */
+    private void paintCached
+    (Graphics g)
+    {
+        if (image == null)
         {
-            // Draw spots.
-            for (int r = 0; r < C4BoardIntf.ROWS; ++ r)
+            background = new BufferedImage
+                    (W*cols, W*rows, BufferedImage.TYPE_INT_RGB);
+            image = new BufferedImage
+                    (W*cols, W*rows, BufferedImage.TYPE_INT_RGB);
+            Graphics2D bg = antialias (background.createGraphics());
+            for (int r = 0; r < rows; ++ r)
+                for (int c = 0; c < cols; ++ c)
+                    drawCell (bg, r, c, NO_COLOR);
+            bg.dispose();
+            synchronized (dirtyCells)
             {
-                for (int c = 0; c < C4BoardIntf.COLS; ++ c)
-                {
-                    if (board.hasPlayer1Marker (r, c))
-                        color = P1_COLOR;
-                    else if (board.hasPlayer2Marker (r, c))
-                        color = P2_COLOR;
-                    else
-                        color = NO_COLOR;
-                    ellipse.x = c*W + OFFSET;
-                    ellipse.y = r*W + OFFSET;
-                    g2d.setColor (color);
-                    g2d.fill (ellipse);
-                }
+                allDirty = true;
             }
+        }
 
-            // Draw win line if any.
-            int[] coord = board.hasWon();
-            if (coord != null)
+        BitSet cells;
+        boolean all;
+        synchronized (dirtyCells)
+        {
+            cells = (BitSet) dirtyCells.clone();
+            all = allDirty;
+            dirtyCells.clear();
+            allDirty = false;
+        }
+        if (all || ! cells.isEmpty())
+            updateImage (cells, all);
+
+        g.drawImage (image, 0, 0, null);
+
+        int[] coord = winLine;
+        if (coord != null)
+        {
+            Rectangle bounds = lineBounds (coord);
+            if (g.hitClip (bounds.x, bounds.y, bounds.width, bounds.height))
+            {
+                Graphics2D g2d = antialias ((Graphics2D) g.create());
+                drawWinLine (g2d, coord);
+                g2d.dispose();
+            }
+        }
+    }
+
+    /**
+     * Redraw the given cells into the cached image. If the win line changed,
+     * repaint its region as well.
+     *
+     * @param  cells  Changed cells, bit r*cols + c.
+     * @param  all    True if every cell changed.
+     */
+    private void updateImage
+    (BitSet cells,
+     boolean all)
+    {
+        Graphics2D g2d = antialias (image.createGraphics());
+        int[] coord = board.hasWon();
+        if (all)
+        {
+            g2d.drawImage (background, 0, 0, null);
+            for (int r = 0; r < rows; ++ r)
+                for (int c = 0; c < cols; ++ c)
+                    if (board.hasPlayer1Marker (r, c))
+                        drawCell (g2d, r, c, P1_COLOR);
+                    else if (board.hasPlayer2Marker (r, c))
+                        drawCell (g2d, r, c, P2_COLOR);
+        }
+        else
+        {
+            for (int cell = cells.nextSetBit (0); cell >= 0;
+                 cell = cells.nextSetBit (cell + 1))
             {
-                g2d.setStroke (WIN_STROKE);
-                g2d.setColor (WIN_COLOR);
-                Line2D.Double line = new Line2D.Double();
-                line.x1 = (coord[1] + 0.5)*W;
-                line.y1 = (coord[0] + 0.5)*W;
-                line.x2 = (coord[3] + 0.5)*W;
-                line.y2 = (coord[2] + 0.5)*W;
-                g2d.draw (line);
+                int r = cell/cols;
+                int c = cell%cols;
+                if (board.hasPlayer1Marker (r, c))
+                    drawCell (g2d, r, c, P1_COLOR);
+                else if (board.hasPlayer2Marker (r, c))
+                    drawCell (g2d, r, c, P2_COLOR);
+                else
+                    drawCell (g2d, r, c, NO_COLOR);
             }
         }
+        g2d.dispose();
+
+        int[] old = winLine;
+        winLine = coord;
+        if (old != null && (coord == null || ! Arrays.equals (old, coord)))
+            repaint (lineBounds (old));
+        if (coord != null && (old == null || ! Arrays.equals (old, coord)))
+            repaint (lineBounds (coord));
+    }
+
+    /**
+     * Draw one cell, its background and its marker or empty hole.
+     *
+     * @param  g2d    Graphics context.
+     * @param  r      Row.
+     * @param  c      Column.
+     * @param  color  Marker color, or NO_COLOR for an empty hole.
+     */
+    private static void drawCell
+    (Graphics2D g2d,
+     int r,
+     int c,
+     Color color)
+    {
+        g2d.setColor (BG_COLOR);
+        g2d.fillRect (c*W, r*W, W, W);
+        g2d.setColor (color);
+        g2d.fill (new Ellipse2D.Double (c*W + OFFSET, r*W + OFFSET, D, D));
+    }
+
+    /**
+     * Draw the win line.
+     *
+     * @param  g2d    Graphics context.
+     * @param  coord  Win line (r1, c1, r2, c2).
+     */
+    private static void drawWinLine
+    (Graphics2D g2d,
+     int[] coord)
+    {
+        g2d.setStroke (WIN_STROKE);
+        g2d.setColor (WIN_COLOR);
+        g2d.draw (new Line2D.Double
+                ((coord[1] + 0.5)*W, (coord[0] + 0.5)*W,
+                 (coord[3] + 0.5)*W, (coord[2] + 0.5)*W));
+    }
+
+    /**
+     * Determine the region covered by a win line, including its stroke.
+     *
+     * @param  coord  Win line (r1, c1, r2, c2).
+     *
+     * @return  Bounding rectangle.
+     */
+    private static Rectangle lineBounds
+    (int[] coord)
+    {
+        int x = Math.min (coord[1], coord[3])*W;
+        int y = Math.min (coord[0], coord[2])*W;
+        int w = (Math.abs (coord[3] - coord[1]) + 1)*W;
+        int h = (Math.abs (coord[2] - coord[0]) + 1)*W;
+        return new Rectangle (x, y, w, h);
+    }
+
+    /**
+     * Turn on antialiasing in a graphics context.
+     *
+     * @param  g2d  Graphics context.
+     *
+     * @return  The graphics context.
+     */
+    private static Graphics2D antialias
+    (Graphics2D g2d)
+    {
+        g2d.setRenderingHint
+                (RenderingHints.KEY_ANTIALIASING,
+                        RenderingHints.VALUE_ANTIALIAS_ON);
+        return g2d;
     }
 
 }
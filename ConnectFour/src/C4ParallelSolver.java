@@ -0,0 +1,142 @@
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multi-threaded connect four solver using Lazy SMP.
+ * <P>
+ * Every thread runs its own C4Solver on the same position, and all of them share one
+ * transposition table. The threads break ties between moves in different column
+ * orders, so they work on different parts of the tree and feed each other bounds
+ * through the table. The solver's bounds are exact whatever the search depth, so the
+ * first thread to finish has the right answer and the others are stopped.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4ParallelSolver {
+
+    private final C4Solver[] solvers;
+    private final long[] lastNodeCounts;
+    private final ExecutorService pool;
+    private int score;
+
+    /**
+     * Constructor for C4ParallelSolver
+     * @param threads Number of search threads
+     * @param table Transposition table shared by the threads
+     */
+    public C4ParallelSolver (int threads, C4TranspositionTable table) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1: " + threads);
+        }
+        solvers = new C4Solver[threads];
+        lastNodeCounts = new long[threads];
+        for (int i = 0; i < threads; i++) {
+            solvers[i] = new C4Solver(table);
+            solvers[i].setOrderShift(i);
+        }
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "C4ParallelSolver");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Gives every search thread an opening book to consult before searching
+     * @param book Opening book, or null for none
+     */
+    public void setOpeningBook (C4OpeningBook book) {
+        for (C4Solver solver : solvers) {
+            solver.setOpeningBook(book);
+        }
+    }
+
+    /**
+     * Finds the best column for the player to move in the given position
+     * @param board Board to analyze
+     * @return Best column, or -1 if the game is already over
+     * @throws InterruptedException if interrupted while waiting for the search threads
+     */
+    public int bestMove (C4BoardIntf board) throws InterruptedException {
+        if (board.hasWon() != null) {
+            return -1;
+        }
+        long p1 = C4Solver.playerBoard(board, 1);
+        long p2 = C4Solver.playerBoard(board, 2);
+
+        long[] startCounts = new long[solvers.length];
+        ExecutorCompletionService<int[]> done = new ExecutorCompletionService<>(pool);
+        Future<?>[] futures = new Future<?>[solvers.length];
+        for (int i = 0; i < solvers.length; i++) {
+            C4Solver solver = solvers[i];
+            startCounts[i] = solver.getNodeCount();
+            solver.setStopped(false);
+            futures[i] = done.submit(() -> new int[] {solver.bestMove(p1, p2), solver.getScore()});
+        }
+
+        int[] result = null;
+        try {
+            for (int i = 0; i < solvers.length && result == null; i++) {
+                try {
+                    result = done.take().get();
+                } catch (ExecutionException exc) {
+                    if (!(exc.getCause() instanceof C4Solver.SearchAbortedException)) {
+                        throw new IllegalStateException(exc.getCause());
+                    }
+                }
+            }
+        } finally {
+            for (C4Solver solver : solvers) {
+                solver.setStopped(true);
+            }
+            // Let the other threads unwind before their solvers are used again.
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException exc) {
+                    // Stopped searches end with SearchAbortedException.
+                }
+            }
+        }
+        for (int i = 0; i < solvers.length; i++) {
+            lastNodeCounts[i] = solvers[i].getNodeCount() - startCounts[i];
+        }
+        score = result[1];
+        return result[0];
+    }
+
+    /**
+     * Returns the score of the move found by the last call to bestMove()
+     * @return Score from the point of view of the player who was to move
+     */
+    public int getScore () {
+        return score;
+    }
+
+    /**
+     * Returns the number of positions each thread searched during the last call to bestMove()
+     * @return Node count per thread
+     */
+    public long[] getNodeCounts () {
+        return lastNodeCounts.clone();
+    }
+
+    /**
+     * Returns the number of search threads
+     * @return Thread count
+     */
+    public int getThreadCount () {
+        return solvers.length;
+    }
+
+    /**
+     * Stops the search threads
+     */
+    public void shutdown () {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,915 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connect four game server speaking the C4Messages line protocol over non-blocking sockets.
+ * <P>
+ * Usage: <TT>java C4Server [-board <I>rows</I>x<I>cols</I>[x<I>connect</I>]]
+ * [-archive <I>file</I>] <I>host</I> <I>port</I> [<I>loops</I>]</TT>
+ * <P>
+ * The server runs a fixed number of event loops, one thread and one Selector each.
+ * Connections are handed to the loops two at a time, so the two players of a game
+ * usually share a loop; a player who joins a game waiting on another loop, or resumes a
+ * seat there, is moved to that loop, so a game's state is only ever touched by the one
+ * thread that owns it. Each game
+ * keeps the authoritative board in a C4Model and checks every move against it: a move
+ * is accepted only from the player whose turn it is and only into a column with room.
+ * Replies for a batch of input are queued per connection and written once the batch
+ * has been processed. A client that joins with <TT>join <I>name</I> binary</TT> is
+ * answered with <TT>binary</TT> and talks C4BinaryProtocol frames from then on; the two
+ * players of a game need not use the same protocol.
+ * <P>
+ * Games are played on the standard 6x7 board unless <TT>-board</TT> asks for another
+ * size and win length, four in a row by default. On any other board each player is told
+ * its size with <TT>size <I>rows</I> <I>cols</I> <I>connect</I></TT> when seated, and a
+ * board of more than C4BinaryProtocol.MAX_BOARD rows or columns is played in text only.
+ * <P>
+ * With <TT>-archive</TT>, every game played is kept in a C4GameArchive as soon as it is
+ * won or drawn, or, left unfinished, when the board is cleared or the game ends. The archive is flushed every
+ * ARCHIVE_FLUSH_MILLIS and when the server shuts down.
+ * <P>
+ * Each seated player is given a session number with <TT>session <I>n</I></TT>. A player
+ * whose connection drops keeps the seat for RESUME_MILLIS, while the opponent stays
+ * connected. Reconnecting with <TT>resume <I>n</I> <I>clears</I> <I>moves</I></TT>, where
+ * the counts are the clear and add messages the client has seen, gets the session
+ * confirmed, the moves played since then and whose turn it is. If the board was cleared
+ * in between, the client gets a clear and every move of the new game instead. Every clear
+ * the server sends carries its clear count, <TT>clear <I>clears</I></TT>, so a client that
+ * missed several clears takes up the server's count and its next resume matches again.
+ * A client's clear carries the count it has seen in the same way, and is ignored unless
+ * it matches the server's count, so a clear sent twice, or at the same time as the
+ * opponent's, starts only one new game. Once the time is up the game ends and the
+ * opponent is disconnected. A resume that the server cannot match to a seat is answered
+ * by closing the connection.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4Server {
+
+    /**
+     * How long a player whose connection dropped keeps the seat
+     */
+    public static final long RESUME_MILLIS = 30000;
+
+    /**
+     * How often the game archive is written out
+     */
+    public static final long ARCHIVE_FLUSH_MILLIS = 10000;
+
+    // How often a loop checks for seats to give up while players are away.
+    private static final long SWEEP_MILLIS = 1000;
+
+    // Session numbers are below a billion, so that they fit a protocol number.
+    private static final int SESSION_LIMIT = 1000000000;
+
+    private static final ConcurrentHashMap<Integer, Game> sessionGames = new ConcurrentHashMap<>();
+    private static final SecureRandom random = new SecureRandom();
+
+    // The game waiting for a second player, whichever loop owns it; guarded by the class lock.
+    private static Game waiting;
+
+    // Board of every game, set by main before the loops start.
+    private static int boardRows = C4BoardIntf.ROWS;
+    private static int boardCols = C4BoardIntf.COLS;
+    private static int boardConnect = C4BoardGeometry.STANDARD_CONNECT;
+
+    // Where finished games are kept, or null; set by main before the loops start.
+    private static C4GameArchive archive;
+
+    /**
+     * Main method that starts the server
+     *
+     * @param args Optional board size and archive file, Host, Port, optional number of event loops
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int a = 0;
+        while (a + 1 < args.length && args[a].startsWith("-")) {
+            if (args[a].equals("-board")) {
+                parseBoard(args[a + 1]);
+            } else if (args[a].equals("-archive")) {
+                archive = new C4GameArchive(Paths.get(args[a + 1]));
+            } else {
+                usage();
+            }
+            a += 2;
+        }
+        if (args.length - a < 2 || args.length - a > 3) usage();
+        InetSocketAddress address = new InetSocketAddress(args[a], Integer.parseInt(args[a + 1]));
+        int loopCount = args.length - a == 3
+                ? Integer.parseInt(args[a + 2])
+                : Runtime.getRuntime().availableProcessors();
+
+        if (archive != null) {
+            startArchiveFlusher();
+        }
+
+        EventLoop[] loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+
+        ServerSocketChannel acceptor = ServerSocketChannel.open();
+        acceptor.bind(address, 1024);
+        long accepted = 0;
+        for (;;) {
+            SocketChannel channel = acceptor.accept();
+            // Consecutive connections are paired into a game, so send each pair to the same loop.
+            loops[(int) ((accepted++ / 2) % loopCount)].register(channel);
+        }
+    }
+
+    /**
+     * Sets the board of every game from a <TT>rows</TT>x<TT>cols</TT>[x<TT>connect</TT>] argument
+     * @param size Board size argument
+     */
+    private static void parseBoard (String size) {
+        String[] parts = size.split("x");
+        if (parts.length < 2 || parts.length > 3) usage();
+        boardRows = Integer.parseInt(parts[0]);
+        boardCols = Integer.parseInt(parts[1]);
+        boardConnect = parts.length == 3 ? Integer.parseInt(parts[2]) : C4BoardGeometry.STANDARD_CONNECT;
+        // Fails on a board that cannot be played.
+        C4BoardGeometry.of(boardRows, boardCols, boardConnect);
+    }
+
+    /**
+     * Writes the archive out every ARCHIVE_FLUSH_MILLIS, and closes it when the server shuts down
+     */
+    private static void startArchiveFlusher () {
+        Thread flusher = new Thread("C4Server-archive") {
+            public void run () {
+                for (;;) {
+                    try {
+                        Thread.sleep(ARCHIVE_FLUSH_MILLIS);
+                        archive.flush();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        System.err.println(e);
+                    }
+                }
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                archive.close();
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+        }));
+    }
+
+    /**
+     * Opens a session for a seat in a game
+     * @param game The game
+     * @return A new session number
+     */
+    private static int openSession (Game game) {
+        for (;;) {
+            int session = random.nextInt(SESSION_LIMIT);
+            if (sessionGames.putIfAbsent(session, game) == null) {
+                return session;
+            }
+        }
+    }
+
+    /**
+     * An event loop thread that owns a Selector and every connection and game registered with it
+     */
+    private static class EventLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Connection> pending = new ConcurrentLinkedQueue<>();
+        private final ArrayList<Connection> dirty = new ArrayList<>();
+        private final ArrayList<Game> departed = new ArrayList<>();
+
+        /**
+         * Constructor for EventLoop
+         * @param index Loop number, used in the thread name
+         * @throws IOException if the selector cannot be opened
+         */
+        public EventLoop (int index) throws IOException {
+            super("C4Server-loop-" + index);
+            selector = Selector.open();
+        }
+
+        /**
+         * Hands a newly accepted connection to this loop. Safe to call from any thread.
+         * @param channel The accepted connection
+         */
+        public void register (SocketChannel channel) {
+            pending.add(new Connection(this, channel));
+            selector.wakeup();
+        }
+
+        /**
+         * Hands this loop a connection joining or resuming one of its games. Safe to call
+         * from any thread, once the connection's old loop has let go of it.
+         * @param conn The connection
+         */
+        public void adopt (Connection conn) {
+            pending.add(conn);
+            selector.wakeup();
+        }
+
+        public void run () {
+            for (;;) {
+                try {
+                    selector.select(departed.isEmpty() ? 0 : SWEEP_MILLIS);
+                    Connection conn;
+                    while ((conn = pending.poll()) != null) {
+                        if (conn.key == null) {
+                            conn.channel.configureBlocking(false);
+                            conn.channel.socket().setTcpNoDelay(true);
+                        }
+                        conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                        if (conn.target != null) {
+                            conn.settle();
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        conn = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            conn.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.flush();
+                        }
+                    }
+                    for (int i = 0; i < dirty.size(); i++) {
+                        dirty.get(i).flush();
+                    }
+                    dirty.clear();
+                    if (!departed.isEmpty()) {
+                        sweep();
+                    }
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+            }
+        }
+
+        /**
+         * Seats a player who sent a join message in the waiting game, or in a new game if
+         * none is waiting. A waiting game on another loop is left for the connection to move to.
+         * @param conn The joining player
+         */
+        void join (Connection conn) {
+            Game game;
+            boolean first;
+            synchronized (C4Server.class) {
+                first = waiting == null;
+                game = first ? new Game(this) : waiting;
+                waiting = first ? game : null;
+            }
+            if (first) {
+                game.players[0] = conn;
+                game.sessions[0] = openSession(game);
+                conn.game = game;
+                conn.playerNum = 1;
+                conn.sendNumber(1);
+                conn.sendSession(game.sessions[0]);
+                conn.sendSize(game.board);
+                conn.sendName(1, conn.name);
+            } else if (game.loop == this) {
+                seatSecond(game, conn);
+            } else {
+                conn.target = game;
+            }
+        }
+
+        /**
+         * Seats the second player of a game and starts it
+         * @param game A game of this loop that was waiting
+         * @param conn The joining player
+         */
+        void seatSecond (Game game, Connection conn) {
+            if (game.ended) {
+                // The first player left while this one was moving loops.
+                join(conn);
+                return;
+            }
+            Connection first = game.players[0];
+            game.players[1] = conn;
+            game.sessions[1] = openSession(game);
+            conn.game = game;
+            conn.playerNum = 2;
+            conn.sendNumber(2);
+            conn.sendSession(game.sessions[1]);
+            conn.sendSize(game.board);
+            conn.sendName(1, first.name);
+            for (Connection p : game.players) {
+                p.sendName(2, conn.name);
+            }
+            game.turn = 1;
+            game.startMillis = System.currentTimeMillis();
+            game.broadcastTurn();
+        }
+
+        /**
+         * Holds the seat of a player whose connection closed for RESUME_MILLIS. A player
+         * still waiting for an opponent just gives up the game.
+         * @param conn The departed player
+         */
+        void leave (Connection conn) {
+            Game game = conn.game;
+            if (game == null || game.ended) {
+                return;
+            }
+            if (game.players[1] == null) {
+                synchronized (C4Server.class) {
+                    if (waiting == game) {
+                        waiting = null;
+                    }
+                }
+                game.end();
+                return;
+            }
+            game.deadlines[conn.playerNum - 1] = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(RESUME_MILLIS);
+            if (!departed.contains(game)) {
+                departed.add(game);
+            }
+        }
+
+        /**
+         * Ends the games of players who have been away too long, and forgets the games
+         * whose players are all back
+         */
+        private void sweep () {
+            long now = System.nanoTime();
+            for (int i = departed.size() - 1; i >= 0; i--) {
+                Game game = departed.get(i);
+                boolean away = false;
+                boolean expired = false;
+                for (long deadline : game.deadlines) {
+                    if (deadline != 0) {
+                        away = true;
+                        expired |= now - deadline >= 0;
+                    }
+                }
+                if (expired) {
+                    game.end();
+                }
+                if (expired || !away || game.ended) {
+                    departed.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * A game between two players, with the authoritative board
+     */
+    private static class Game {
+        final EventLoop loop;
+        final Connection[] players = new Connection[2];
+        final int[] sessions = new int[2];
+        final C4Model board = new C4Model(boardRows, boardCols, boardConnect);
+        int turn;
+        boolean ended;
+
+        // When the game on the board started, in milliseconds since the epoch, and whether
+        // it is in the archive yet.
+        long startMillis;
+        boolean archived;
+
+        // When each departed player's seat is given up, as System.nanoTime; 0 while connected.
+        final long[] deadlines = new long[2];
+
+        // Moves since the last clear, each packed as row << 8 | column, and the clear count,
+        // so that a resuming player can be sent just what it missed.
+        final short[] moves = new short[boardRows * boardCols];
+        int moveCount;
+        int clears;
+
+        /**
+         * Constructor for Game
+         * @param loop The loop that owns the game and its players' connections
+         */
+        Game (EventLoop loop) {
+            this.loop = loop;
+        }
+
+        /**
+         * Applies a move if it is legal and tells both players the outcome
+         * @param playerNum Player making the move
+         * @param c Column
+         */
+        void add (int playerNum, int c) {
+            if (playerNum != turn || c < 0 || c >= board.getCols() || board.isColumnFull(c)) {
+                return;
+            }
+            int r = board.nextFreeRow(c);
+            board.addPlayerToken(playerNum, r, c);
+            moves[moveCount++] = (short) (r << 8 | c);
+            for (Connection p : players) {
+                if (p != null) {
+                    p.sendAdd(playerNum, r, c);
+                }
+            }
+            turn = board.hasWon() != null || board.isBoardFull() ? 0 : 3 - playerNum;
+            if (turn == 0) {
+                archive();
+            }
+            broadcastTurn();
+        }
+
+        /**
+         * Clears the board and starts a new game with player 1 to move
+         */
+        void clear () {
+            if (players[1] == null) {
+                return;
+            }
+            archive();
+            board.clearBoard();
+            moveCount = 0;
+            clears++;
+            startMillis = System.currentTimeMillis();
+            archived = false;
+            for (Connection p : players) {
+                p.sendClear(clears);
+            }
+            turn = 1;
+            broadcastTurn();
+        }
+
+        /**
+         * Seats a connection that resumed a session, in place of the player's old connection,
+         * and catches it up with the game
+         * @param conn The resuming connection
+         */
+        void resume (Connection conn) {
+            int seat = sessions[0] == conn.resumeSession ? 0 : sessions[1] == conn.resumeSession ? 1 : -1;
+            if (ended || seat < 0) {
+                conn.close();
+                return;
+            }
+            Connection old = players[seat];
+            if (old.channel.isOpen()) {
+                // The server had not noticed the old connection drop; retire it quietly.
+                old.game = null;
+                old.close();
+            }
+            players[seat] = conn;
+            deadlines[seat] = 0;
+            conn.game = this;
+            conn.playerNum = seat + 1;
+            conn.name = old.name;
+            if (conn.resumeBinary && C4BinaryProtocol.fits(boardRows, boardCols)) {
+                conn.send(C4Messages.BINARY);
+                conn.binary = true;
+            }
+            conn.sendSession(sessions[seat]);
+            conn.sendSize(board);
+            int from = conn.resumeClears == clears && conn.resumeMoves <= moveCount ? conn.resumeMoves : -1;
+            if (from < 0) {
+                conn.sendClear(clears);
+                from = 0;
+            }
+            // Player 1 makes the first move of every game.
+            for (int i = from; i < moveCount; i++) {
+                conn.sendAdd(i % 2 + 1, moves[i] >> 8, moves[i] & 0xff);
+            }
+            conn.sendTurn(turn);
+        }
+
+        /**
+         * Ends the game, closing its sessions and every connection still open
+         */
+        void end () {
+            if (!ended && players[1] != null) {
+                archive();
+            }
+            ended = true;
+            for (int i = 0; i < players.length; i++) {
+                if (players[i] != null) {
+                    sessionGames.remove(sessions[i], this);
+                    players[i].close();
+                }
+            }
+        }
+
+        /**
+         * Keeps the game on the board in the archive, if the server has one, a move was made
+         * and it is not there already
+         */
+        void archive () {
+            if (archive == null || moveCount == 0 || archived) {
+                return;
+            }
+            archived = true;
+            int[] columns = new int[moveCount];
+            for (int i = 0; i < moveCount; i++) {
+                columns[i] = moves[i] & 0xff;
+            }
+            try {
+                archive.append(new C4GameRecord(board.getRows(), board.getCols(), board.getConnect(),
+                        players[0].name, players[1].name, C4GameRecord.resultOf(board), startMillis,
+                        System.currentTimeMillis(), columns, moveCount));
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+        }
+
+        /**
+         * Tells every seated player whose turn it is
+         */
+        void broadcastTurn () {
+            for (Connection p : players) {
+                if (p != null) {
+                    p.sendTurn(turn);
+                }
+            }
+        }
+    }
+
+    /**
+     * A client connection with its input and output buffers
+     */
+    private static class Connection {
+        private static final int BUFFER_SIZE = 4096;
+
+        EventLoop loop;
+        final SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+        final C4Message message = new C4Message();
+        boolean queued;
+        boolean binary;
+        Game game;
+        int playerNum;
+        String name;
+
+        // A game on another loop this connection is moving to, to join it or, with the
+        // request below, to resume a seat.
+        Game target;
+        boolean resuming;
+        int resumeSession;
+        int resumeClears;
+        int resumeMoves;
+        boolean resumeBinary;
+
+        /**
+         * Constructor for Connection
+         * @param loop The loop that owns the connection
+         * @param channel The client socket
+         */
+        Connection (EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        /**
+         * Reads what the client has sent and processes every complete line
+         */
+        void read () {
+            int n;
+            try {
+                n = channel.read(in);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n == -1) {
+                close();
+                return;
+            }
+            consume();
+        }
+
+        /**
+         * Processes every complete message in the input buffer. A resume is carried out as
+         * soon as it is read, by this loop or by the loop that owns the game, before any
+         * message after it is processed.
+         */
+        void consume () {
+            in.flip();
+            byte[] b = in.array();
+            int start = in.position();
+            int limit = in.limit();
+            while (start < limit && target == null) {
+                // The protocol can change after a join, so decode one message at a time.
+                if (binary) {
+                    int frame = C4BinaryProtocol.decode(b, start, limit - start, message, false);
+                    if (frame == 0) {
+                        break;
+                    }
+                    if (frame < 0 || !process()) {
+                        close();
+                        return;
+                    }
+                    start += frame;
+                } else {
+                    int newline = start;
+                    while (newline < limit && b[newline] != '\n') {
+                        newline++;
+                    }
+                    if (newline == limit) {
+                        break;
+                    }
+                    C4MessageParser.parse(b, start, newline - start, message);
+                    start = newline + 1;
+                    if (!process()) {
+                        close();
+                        return;
+                    }
+                }
+            }
+            in.position(start);
+            in.compact();
+            if (target != null) {
+                if (target.loop == loop) {
+                    settle();
+                } else {
+                    // Anything queued goes out now, as the output belongs to the new loop.
+                    if (queued) {
+                        loop.dirty.remove(this);
+                        flush();
+                    }
+                    key.cancel();
+                    loop = target.loop;
+                    loop.adopt(this);
+                }
+                return;
+            }
+            if (!in.hasRemaining()) {
+                // A line longer than the buffer is not part of the protocol.
+                close();
+            }
+        }
+
+        /**
+         * Processes the message just decoded from the client
+         * @return false if the message is not part of the protocol, true otherwise
+         */
+        private boolean process () {
+            switch (message.getType()) {
+                case C4Message.JOIN:
+                    if (game != null) {
+                        return false;
+                    }
+                    name = message.getName();
+                    if (message.wantsBinary() && C4BinaryProtocol.fits(boardRows, boardCols)) {
+                        send(C4Messages.BINARY);
+                        binary = true;
+                    }
+                    loop.join(this);
+                    return true;
+                case C4Message.RESUME:
+                    if (game != null) {
+                        return false;
+                    }
+                    target = sessionGames.get(message.getArg(0));
+                    if (target == null) {
+                        return false;
+                    }
+                    resuming = true;
+                    resumeSession = message.getArg(0);
+                    resumeClears = message.getArg(1);
+                    resumeMoves = message.getArg(2);
+                    resumeBinary = message.wantsBinary();
+                    return true;
+                case C4Message.ADD:
+                    if (game == null || message.getArgCount() != 2) {
+                        return false;
+                    }
+                    if (message.getArg(0) == playerNum) {
+                        game.add(playerNum, message.getArg(1));
+                    }
+                    return true;
+                case C4Message.CLEAR:
+                    if (game == null) {
+                        return false;
+                    }
+                    // A clear that names an earlier count was sent again after a resume, or
+                    // crossed a clear from the opponent, and that game is already gone.
+                    if (message.getArgCount() == 0
+                            || message.getArg(0) == (binary ? game.clears & 0xff : game.clears)) {
+                        game.clear();
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Queues a message for the client; it is written when the loop has finished its batch
+         * @param message Message, without the newline
+         */
+        void send (String message) {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            if (!reserve(bytes.length + 1)) {
+                return;
+            }
+            out.put(bytes).put((byte) '\n');
+        }
+
+        /**
+         * Queues a number message
+         * @param p Player number
+         */
+        void sendNumber (int p) {
+            if (!binary) {
+                send(C4Messages.NUMBER + " " + p);
+            } else if (reserve(C4BinaryProtocol.FRAME_SIZE)) {
+                C4BinaryProtocol.putNumber(out, p);
+            }
+        }
+
+        /**
+         * Joins or resumes the game this connection is moving to, on the loop that owns the
+         * game, then processes whatever the client sent after that
+         */
+        void settle () {
+            Game game = target;
+            target = null;
+            if (resuming) {
+                resuming = false;
+                game.resume(this);
+            } else {
+                loop.seatSecond(game, this);
+            }
+            if (channel.isOpen()) {
+                consume();
+            }
+        }
+
+        /**
+         * Queues a session message
+         * @param session Session number
+         */
+        void sendSession (int session) {
+            if (!binary) {
+                send(C4Messages.SESSION + " " + session);
+            } else if (reserve(C4BinaryProtocol.SESSION_FRAME_SIZE)) {
+                C4BinaryProtocol.putSession(out, session);
+            }
+        }
+
+        /**
+         * Queues a size message, unless the board is the standard one that every client
+         * knows without being told
+         * @param board The game's board
+         */
+        void sendSize (C4Model board) {
+            if (board.isStandard()) {
+                return;
+            }
+            if (!binary) {
+                send(C4Messages.SIZE + " " + board.getRows() + " " + board.getCols() + " "
+                        + board.getConnect());
+            } else if (reserve(C4BinaryProtocol.SIZE_FRAME_SIZE)) {
+                C4BinaryProtocol.putSize(out, board.getRows(), board.getCols(), board.getConnect());
+            }
+        }
+
+        /**
+         * Queues a name message
+         * @param p Player number
+         * @param playerName Player name
+         */
+        void sendName (int p, String playerName) {
+            if (!binary) {
+                send(C4Messages.NAME + " " + p + " " + playerName);
+                return;
+            }
+            byte[] bytes = playerName.getBytes(StandardCharsets.UTF_8);
+            if (reserve(C4BinaryProtocol.nameFrameSize(bytes))) {
+                C4BinaryProtocol.putName(out, p, bytes);
+            }
+        }
+
+        /**
+         * Queues a turn message
+         * @param p Player to move, or 0 if the game is over
+         */
+        void sendTurn (int p) {
+            if (!binary) {
+                send(C4Messages.TURN + " " + p);
+            } else if (reserve(C4BinaryProtocol.FRAME_SIZE)) {
+                C4BinaryProtocol.putTurn(out, p);
+            }
+        }
+
+        /**
+         * Queues an add message
+         * @param p Player number
+         * @param r Row
+         * @param c Column
+         */
+        void sendAdd (int p, int r, int c) {
+            if (!binary) {
+                send(C4Messages.ADD + " " + p + " " + r + " " + c);
+            } else if (reserve(C4BinaryProtocol.FRAME_SIZE)) {
+                C4BinaryProtocol.putAdd(out, p, r, c);
+            }
+        }
+
+        /**
+         * Queues a clear message carrying the game's clear count, which the client keeps
+         * to resume with
+         * @param clears Number of clears so far
+         */
+        void sendClear (int clears) {
+            if (!binary) {
+                send(C4Messages.CLEAR + " " + clears);
+            } else if (reserve(C4BinaryProtocol.FRAME_SIZE)) {
+                C4BinaryProtocol.putClear(out, clears);
+            }
+        }
+
+        /**
+         * Makes room for a message in the output buffer and schedules the connection to be
+         * flushed at the end of the batch
+         * @param size Message size in bytes
+         * @return true if the message can be written, false if the connection is closed
+         */
+        private boolean reserve (int size) {
+            if (!channel.isOpen()) {
+                return false;
+            }
+            if (out.remaining() < size) {
+                // The client is not reading its messages.
+                close();
+                return false;
+            }
+            if (!queued) {
+                queued = true;
+                loop.dirty.add(this);
+            }
+            return true;
+        }
+
+        /**
+         * Writes as much queued output as the socket accepts, waiting for OP_WRITE if some is left
+         */
+        void flush () {
+            queued = false;
+            if (!channel.isOpen()) {
+                return;
+            }
+            out.flip();
+            try {
+                channel.write(out);
+            } catch (IOException e) {
+                out.clear();
+                close();
+                return;
+            }
+            out.compact();
+            key.interestOps(out.position() > 0
+                    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                    : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Closes the connection and ends its game
+         */
+        void close () {
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+            loop.leave(this);
+        }
+    }
+
+    /**
+     * Print a usage message and exit.
+     */
+    private static void usage()
+    {
+        System.err.println ("Usage: java C4Server [-board <rows>x<cols>[x<connect>]] [-archive <file>] <host> <port> [<loops>]");
+        System.exit (1);
+    }
+}
@@ -2,18 +2,151 @@ import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Server service that enables socket connection to a given host and port.
- * Also capable to receive and send messages over the protocol
+ * Also capable to receive and send messages over the protocol, either as C4Messages
+ * text lines or, if negotiated when joining, as C4BinaryProtocol frames.
+ * <P>
+ * Sending a message only copies it into a bounded outbound queue; a writer thread takes
+ * everything queued since its last write and sends it with one write and one flush. So a
+ * caller such as the Swing event thread never waits on the network, and a client sending
+ * many messages makes few system calls. What happens when the queue is full is set by
+ * the Backpressure policy. The writer and reader threads come from a ThreadFactory that
+ * may be given, so a process with thousands of connections can run them as virtual
+ * threads; the queue is guarded by a ReentrantLock rather than a monitor so that a virtual
+ * thread waiting on it does not hold on to its carrier.
+ * <P>
+ * Messages can be pulled with readMessage or receiveMessage, or pushed to a
+ * C4ConnectionListener by a reader thread started with startReader. Either way the reader
+ * blocks in the socket read while there is nothing to read, and once the server closes
+ * the connection or a read fails, every later read reports CONNECTION_CLOSED at once.
+ * <P>
+ * The server gives each seated player a session, which this connection keeps along with
+ * the server's clear count and the moves received since the last clear. If the connection
+ * drops while a reader thread is running, the reader reconnects with exponential backoff
+ * and resumes the session, and the server sends only the moves played since. Only when
+ * every attempt has failed, or the server refuses the session, does the listener get
+ * CONNECTION_CLOSED.
+ * <P>
+ * Once the session is given, every add and clear sent is kept until the server's messages
+ * show it applied: an add until the next move or clear, a clear until the next clear.
+ * Bytes written to a socket that then dropped may or may not have reached the server, so
+ * after a resume, once the server has caught the connection up, the queue is rebuilt from
+ * the kept messages alone. A clear carries the clear count the client has seen, and the
+ * server ignores one that does not match its own. So an add or clear sent while the
+ * session can be resumed reaches the server once, unless the game moved on without it;
+ * any other message queued when the connection drops is lost.
  *
  * @author Alberto Scicali
  * @version 0.1.0
  */
 public class C4ServerConnection {
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Default outbound queue capacity in bytes
+     */
+    public static final int DEFAULT_QUEUE_BYTES = 64 * 1024;
+
+    // How long closeConnection waits for queued messages to be written.
+    private static final long CLOSE_MILLIS = 1000;
+
+    // Reconnect attempts after the connection drops: the delay before each one doubles from
+    // the minimum up to the maximum, and together they outlast C4Server.RESUME_MILLIS.
+    private static final int RECONNECT_ATTEMPTS = 8;
+    private static final long RECONNECT_MIN_MILLIS = 250;
+    private static final long RECONNECT_MAX_MILLIS = 8000;
+    private static final int CONNECT_MILLIS = 5000;
+
+    /**
+     * What a send does when the outbound queue has no room for the message
+     */
+    public enum Backpressure {
+        /** Wait until the writer makes room */
+        BLOCK,
+        /** Discard the message and count it */
+        DROP,
+        /** Throw an IOException */
+        FAIL
+    }
+
+    private final SocketAddress address;
+    private volatile Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private volatile boolean binary;
+
+    // Outbound queue: senders append to queued, the writer thread swaps it with writing and
+    // writes that. All fields here are guarded by queueLock.
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition queueChanged = queueLock.newCondition();
+    private final Backpressure backpressure;
+    private ByteBuffer queued;
+    private ByteBuffer writing;
+    private int queuedMessages;
+    private long dropped;
+    private boolean closing;
+    private boolean reconnecting;
+    private IOException writeFailure;
+    private final C4Message outgoing = new C4Message();
+    private final Thread writer;
+    private final ThreadFactory threads;
+
+    // Outbound counters, written only by the writer thread.
+    private volatile long flushCount;
+    private volatile long messagesFlushed;
+    private volatile long bytesFlushed;
+    private volatile int largestFlush;
+
+    private final C4Message incoming = new C4Message();
+
+    // Receive state: set once the stream has ended or a read failed.
+    private volatile boolean ended;
+    private volatile IOException readFailure;
+    private volatile Thread reader;
+
+    // The server's session for this player, or -1 before it is given, the server's clear
+    // count as of the last clear received, and the moves received since, which are what a
+    // resume asks the server to skip. Written only by the reading thread; the counts under
+    // queueLock, so that a message sent is kept with a matching pair.
+    private volatile int session = -1;
+    private int clears;
+    private int moves;
+    private volatile long reconnects;
+
+    // Adds and clears sent since the session was given that the server has not yet shown
+    // to be applied, oldest first, each packed by queueGameMessage. Guarded by queueLock.
+    private long[] unapplied = new long[16];
+    private int unappliedCount;
+
+    // Set by a resume until the server's answer ends with a turn message. Reading thread only.
+    private boolean catchingUp;
+
+    // Receive counters, written only by the reading thread. Read latency is the time from
+    // the socket read that completed a message to the listener finishing with it, kept in
+    // buckets by powers of two nanoseconds.
+    private volatile long readCount;
+    private volatile long bytesRead;
+    private volatile long messagesReceived;
+    private volatile long maxReadLatency;
+    private final AtomicLongArray readLatencyBuckets = new AtomicLongArray(64);
+    private long lastReadNanos;
+
+    // Bytes read from the socket: lines not yet returned start at lineStart, and bytes up
+    // to scanned have been searched for a newline.
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int lineStart;
+    private int scanned;
+    private int end;
 
     /**
      * C4ServerConnection constructor, accepts a host and port as parameters to create a socket connection
@@ -22,11 +155,48 @@ public class C4ServerConnection {
      * @throws Exception
      */
     public C4ServerConnection(String host, int port) throws Exception {
-        SocketAddress sock_addr = new InetSocketAddress(host, port);
+        this(host, port, DEFAULT_QUEUE_BYTES, Backpressure.FAIL);
+    }
+
+    /**
+     * C4ServerConnection constructor with a given outbound queue
+     * @param host The server host
+     * @param port The server port
+     * @param queueBytes Outbound queue capacity in bytes
+     * @param backpressure What a send does when the queue is full
+     * @throws Exception
+     */
+    public C4ServerConnection(String host, int port, int queueBytes, Backpressure backpressure) throws Exception {
+        this(host, port, queueBytes, backpressure, Thread::new);
+    }
+
+    /**
+     * C4ServerConnection constructor with a given outbound queue and a factory for the writer
+     * and reader threads, such as one making virtual threads for a process with thousands of
+     * connections
+     * @param host The server host
+     * @param port The server port
+     * @param queueBytes Outbound queue capacity in bytes
+     * @param backpressure What a send does when the queue is full
+     * @param threads Factory for the connection's threads
+     * @throws Exception
+     */
+    public C4ServerConnection(String host, int port, int queueBytes, Backpressure backpressure,
+                              ThreadFactory threads) throws Exception {
+        address = new InetSocketAddress(host, port);
         socket = new Socket();
-        socket.connect(sock_addr);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
+        socket.connect(address);
+        socket.setTcpNoDelay(true);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+        this.backpressure = backpressure;
+        queued = ByteBuffer.allocate(queueBytes);
+        writing = ByteBuffer.allocate(queueBytes);
+        this.threads = threads;
+        writer = threads.newThread(this::writeQueued);
+        writer.setName("C4ServerConnection-writer");
+        writer.setDaemon(true);
+        writer.start();
     }
 
     /**
@@ -35,24 +205,802 @@ public class C4ServerConnection {
      * @throws IOException
      */
     public String receiveMessage () throws IOException {
-        String received_message = null;
-        while (received_message == null) {
-            if (isSocketClosed()) {
-                received_message = C4Messages.CONNECTION_CLOSED;
-            } else {
-                received_message = in.readLine();
+        readMessage(incoming);
+        return incoming.toString();
+    }
+
+    /**
+     * Reads the next message into the given record, decoding it straight from the
+     * connection's buffer. Unlike receiveMessage, this creates no garbage per message.
+     * @param message Record to decode into, reused from call to call
+     * @return The message type; CONNECTION_CLOSED if the socket is closed or the server
+     *         closed the connection, INVALID if the line is not a protocol message
+     * @throws IOException
+     */
+    public int readMessage (C4Message message) throws IOException {
+        for (;;) {
+            switch (decodeMessage(message)) {
+                case C4Message.SESSION:
+                    session = message.getArg(0);
+                    continue;
+                case C4Message.ADD:
+                    if (message.getArgCount() == 3) {
+                        advance(clears, moves + 1);
+                    }
+                    break;
+                case C4Message.CLEAR:
+                    if (message.getArgCount() == 0) {
+                        advance(clears + 1, 0);
+                    } else if (binary) {
+                        // Only the low 8 bits came; move up to the count that has them.
+                        advance(clears + ((message.getArg(0) - clears) & 0xff), 0);
+                    } else {
+                        advance(message.getArg(0), 0);
+                    }
+                    break;
+                case C4Message.TURN:
+                    if (catchingUp) {
+                        catchingUp = false;
+                        resend();
+                    }
+                    break;
+                default:
+                    break;
             }
+            return message.getType();
         }
-        return received_message;
     }
 
     /**
-     * Sends a given message to the socket out stream
+     * Decodes the next message from the connection's buffer, reading from the socket as needed
+     * @param message Record to decode into
+     * @return The message type
+     * @throws IOException
+     */
+    private int decodeMessage (C4Message message) throws IOException {
+        if (ended || isSocketClosed()) {
+            message.setConnectionClosed();
+            return message.getType();
+        }
+        if (binary) {
+            int n;
+            while ((n = C4BinaryProtocol.decode(buffer, lineStart, end - lineStart, message, true)) == 0) {
+                if (!fill()) {
+                    message.setConnectionClosed();
+                    return message.getType();
+                }
+            }
+            // After a bad frame there is no telling where the next one starts.
+            lineStart = n < 0 ? end : lineStart + n;
+            return message.getType();
+        }
+        int newline = nextLine();
+        if (newline < 0) {
+            message.setConnectionClosed();
+        } else {
+            C4MessageParser.parse(buffer, lineStart, newline - lineStart, message);
+            lineStart = newline + 1;
+        }
+        return message.getType();
+    }
+
+    /**
+     * Starts a thread that reads every message from the server and hands it to the given
+     * listener, ending with exactly one CONNECTION_CLOSED message when the connection is
+     * closed and cannot be resumed, or the socket is closed. Once the reader is started,
+     * messages must not also be pulled with readMessage or receiveMessage.
+     * @param listener Listener to call on the reader thread
+     */
+    public synchronized void startReader (final C4ConnectionListener listener) {
+        if (reader != null) {
+            throw new IllegalStateException("Reader already started");
+        }
+        reader = threads.newThread(() -> dispatchMessages(listener));
+        reader.setName("C4ServerConnection-reader");
+        reader.start();
+    }
+
+    /**
+     * Body of the reader thread
+     * @param listener Listener to call
+     */
+    private void dispatchMessages (C4ConnectionListener listener) {
+        C4Message message = new C4Message();
+        for (;;) {
+            try {
+                readMessage(message);
+            } catch (IOException e) {
+                // readFailure has the cause; report the end of the connection.
+                message.setConnectionClosed();
+            }
+            if (message.getType() == C4Message.CONNECTION_CLOSED) {
+                if (session >= 0 && reconnect()) {
+                    continue;
+                }
+                listener.messageReceived(message);
+                return;
+            }
+            listener.messageReceived(message);
+            messagesReceived++;
+            long latency = System.nanoTime() - lastReadNanos;
+            readLatencyBuckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(latency, 1)) - 1);
+            if (latency > maxReadLatency) {
+                maxReadLatency = latency;
+            }
+        }
+    }
+
+    /**
+     * Reconnects to the server and resumes the session, waiting longer before each attempt.
+     * Gives up, closing the connection, once the attempts run out, the server refuses the
+     * session, or closeConnection is called.
+     * @return true if the session was resumed, false otherwise
+     */
+    private boolean reconnect () {
+        queueLock.lock();
+        try {
+            if (closing) {
+                return false;
+            }
+            reconnecting = true;
+        } finally {
+            queueLock.unlock();
+        }
+        long delay = RECONNECT_MIN_MILLIS;
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                // A random share of the delay keeps clients cut off together from all
+                // coming back at the same moment.
+                Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            delay = Math.min(2 * delay, RECONNECT_MAX_MILLIS);
+            queueLock.lock();
+            try {
+                if (closing) {
+                    break;
+                }
+            } finally {
+                queueLock.unlock();
+            }
+            Socket s = new Socket();
+            try {
+                s.connect(address, CONNECT_MILLIS);
+                s.setTcpNoDelay(true);
+                if (resume(s)) {
+                    reconnects++;
+                    return true;
+                }
+                // The server is up but no longer has the seat.
+                s.close();
+                break;
+            } catch (IOException e) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        queueLock.lock();
+        try {
+            closing = true;
+            reconnecting = false;
+            queueChanged.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+        return false;
+    }
+
+    /**
+     * Asks the server on a new socket to resume the session, switching the connection to the
+     * socket. The writer thread waits until the rest of the server's answer has been read,
+     * and then carries on with the messages the server has not applied.
+     * @param s Connected socket
+     * @return true if the session was resumed, false if the server refused it
+     * @throws IOException
+     */
+    private boolean resume (Socket s) throws IOException {
+        Socket old = socket;
+        socket = s;
+        in = s.getInputStream();
+        lineStart = 0;
+        scanned = 0;
+        end = 0;
+        ended = false;
+        readFailure = null;
+        old.close();
+        OutputStream o = s.getOutputStream();
+        String request = C4Messages.RESUME + " " + session + " " + clears + " " + moves
+                + (binary ? " " + C4Messages.BINARY : "");
+        o.write(request.getBytes(StandardCharsets.US_ASCII));
+        o.write('\n');
+        o.flush();
+        // Messages already queued were encoded for the protocol in use, so it cannot change.
+        if (binary && !awaitBinaryAnswer()) {
+            return false;
+        }
+        C4Message answer = new C4Message();
+        if (decodeMessage(answer) != C4Message.SESSION || answer.getArg(0) != session) {
+            return false;
+        }
+        queueLock.lock();
+        try {
+            out = o;
+            writeFailure = null;
+        } finally {
+            queueLock.unlock();
+        }
+        catchingUp = true;
+        return true;
+    }
+
+    /**
+     * Returns the number of times the connection was resumed after dropping
+     * @return Reconnect count
+     */
+    public long getReconnects () {
+        return reconnects;
+    }
+
+    /**
+     * Returns the exception that ended reading, if a read failed
+     * @return The failure, or null if the connection is open or ended normally
+     */
+    public IOException getReadFailure () {
+        return readFailure;
+    }
+
+    /**
+     * Returns the number of socket reads that returned data
+     * @return Read count
+     */
+    public long getReadCount () {
+        return readCount;
+    }
+
+    /**
+     * Returns the number of bytes read from the socket
+     * @return Byte count
+     */
+    public long getBytesRead () {
+        return bytesRead;
+    }
+
+    /**
+     * Returns the number of messages the reader thread has delivered to its listener
+     * @return Message count
+     */
+    public long getMessagesReceived () {
+        return messagesReceived;
+    }
+
+    /**
+     * Returns an upper bound on the given percentile of read latency, the time from the socket
+     * read that completed a message to the listener returning from it. Only messages delivered
+     * by the reader thread are measured.
+     * @param percentile Percentile, between 0 and 1
+     * @return Latency in nanoseconds, to within a factor of 2, or 0 if nothing was measured
+     */
+    public long getReadLatencyNanos (double percentile) {
+        long total = 0;
+        for (int i = 0; i < readLatencyBuckets.length(); i++) {
+            total += readLatencyBuckets.get(i);
+        }
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < readLatencyBuckets.length() && total > 0; i++) {
+            seen += readLatencyBuckets.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(i == 62 ? Long.MAX_VALUE : (2L << i) - 1, maxReadLatency);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the longest read latency measured
+     * @return Latency in nanoseconds
+     */
+    public long getMaxReadLatencyNanos () {
+        return maxReadLatency;
+    }
+
+    /**
+     * Sends a given message to the socket out stream. An add or clear is sent as sendAdd or
+     * sendClear sends it.
      * @param message Message to be sent
      * @throws Exception
      */
     public void sendMessage (String message) throws Exception {
-        out.println(message);
+        queueLock.lock();
+        try {
+            byte[] b = message.getBytes(StandardCharsets.UTF_8);
+            C4MessageParser.parse(b, 0, b.length, outgoing);
+            if (outgoing.getType() == C4Message.ADD && outgoing.getArgCount() == 2) {
+                sendAdd(outgoing.getArg(0), outgoing.getArg(1));
+            } else if (outgoing.getType() == C4Message.CLEAR) {
+                sendClear();
+            } else if (!binary) {
+                sendText(message);
+            } else {
+                throw new IllegalArgumentException("Cannot send in binary: '" + message + "'");
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Joins the server's game, asking for the binary protocol if wanted. A server that does
+     * not answer the request with C4Messages.BINARY keeps speaking text, and so does this
+     * connection.
+     * @param name Player name
+     * @param askBinary true to ask for C4BinaryProtocol frames
+     * @return true if the binary protocol is now in use, false otherwise
+     * @throws IOException
+     */
+    public boolean join (String name, boolean askBinary) throws IOException {
+        sendText(C4Messages.JOIN + " " + name + (askBinary ? " " + C4Messages.BINARY : ""));
+        if (askBinary && awaitBinaryAnswer()) {
+            binary = true;
+        }
+        return binary;
+    }
+
+    /**
+     * Checks if the binary protocol was negotiated
+     * @return true if messages are sent and received as binary frames, false for text
+     */
+    public boolean isBinary () {
+        return binary;
+    }
+
+    /**
+     * Asks the server to add a piece for the given player to the given column
+     * @param p Player number
+     * @param c Column
+     * @throws IOException
+     */
+    public void sendAdd (int p, int c) throws IOException {
+        queueGameMessage(p, c);
+    }
+
+    /**
+     * Asks the server to clear the board and start a new game. The message carries the
+     * clear count this connection has seen, so the server clears the board only if no
+     * clear has been made since.
+     * @throws IOException
+     */
+    public void sendClear () throws IOException {
+        queueGameMessage(0, 0);
+    }
+
+    /**
+     * Queues an add or a clear, and keeps it to be sent again after a resume until the
+     * server has applied it
+     * @param p Player number of an add, or 0 for a clear
+     * @param c Column of an add
+     * @throws IOException if the queue is full under the FAIL policy or the connection failed
+     */
+    private void queueGameMessage (int p, int c) throws IOException {
+        queueLock.lock();
+        try {
+            long m = (long) clears << 32 | (long) moves << 16 | (p & 0xff) << 8 | (c & 0xff);
+            if (!reserve(gameMessageSize(m))) {
+                return;
+            }
+            putGameMessage(queued, m);
+            commit();
+            if (session < 0) {
+                return;
+            }
+            for (int i = 0; i < unappliedCount && p == 0; i++) {
+                if (unapplied[i] == m) {
+                    // The same clear again; the server applies only one of them.
+                    return;
+                }
+            }
+            if (unappliedCount == unapplied.length) {
+                unapplied = Arrays.copyOf(unapplied, 2 * unappliedCount);
+            }
+            unapplied[unappliedCount++] = m;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the text of a packed add or clear
+     * @param m Message packed by queueGameMessage
+     * @return Protocol text, without the newline
+     */
+    private static String gameMessageText (long m) {
+        int p = (int) (m >>> 8) & 0xff;
+        return p == 0
+                ? C4Messages.CLEAR + " " + (int) (m >>> 32)
+                : C4Messages.ADD + " " + p + " " + (int) (m & 0xff);
+    }
+
+    /**
+     * Returns the size of a packed add or clear in the protocol in use
+     * @param m Message packed by queueGameMessage
+     * @return Size in bytes
+     */
+    private int gameMessageSize (long m) {
+        return binary ? C4BinaryProtocol.FRAME_SIZE : gameMessageText(m).length() + 1;
+    }
+
+    /**
+     * Writes a packed add or clear in the protocol in use
+     * @param buf Buffer with room for the message
+     * @param m Message packed by queueGameMessage
+     */
+    private void putGameMessage (ByteBuffer buf, long m) {
+        int p = (int) (m >>> 8) & 0xff;
+        if (!binary) {
+            String text = gameMessageText(m);
+            for (int i = 0; i < text.length(); i++) {
+                buf.put((byte) text.charAt(i));
+            }
+            buf.put((byte) '\n');
+        } else if (p == 0) {
+            C4BinaryProtocol.putClear(buf, (int) (m >>> 32));
+        } else {
+            C4BinaryProtocol.putAdd(buf, p, 0, (int) (m & 0xff));
+        }
+    }
+
+    /**
+     * Checks if the server's messages show that a packed add or clear has been applied, or
+     * that the game has moved on without it
+     * @param m Message packed by queueGameMessage
+     * @return true if the message is not to be sent again, false otherwise
+     */
+    private boolean isApplied (long m) {
+        int sentClears = (int) (m >>> 32);
+        if (clears != sentClears) {
+            return true;
+        }
+        return ((m >>> 8) & 0xff) != 0 && moves > ((m >>> 16) & 0xffff);
+    }
+
+    /**
+     * Takes up the counts from a message the server sent and forgets the adds and clears
+     * they show to be applied. Called by the reading thread.
+     * @param newClears The server's clear count
+     * @param newMoves Moves since the last clear
+     */
+    private void advance (int newClears, int newMoves) {
+        queueLock.lock();
+        try {
+            clears = newClears;
+            moves = newMoves;
+            int n = 0;
+            for (int i = 0; i < unappliedCount; i++) {
+                if (!isApplied(unapplied[i])) {
+                    unapplied[n++] = unapplied[i];
+                }
+            }
+            unappliedCount = n;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the queue, once a resumed session has been caught up, with the adds and
+     * clears the server has not applied, and lets the writer thread send them. Called by
+     * the reading thread.
+     */
+    private void resend () {
+        advance(clears, moves);
+        queueLock.lock();
+        try {
+            int size = 0;
+            for (int i = 0; i < unappliedCount; i++) {
+                size += gameMessageSize(unapplied[i]);
+            }
+            queued.clear();
+            if (queued.capacity() < size) {
+                queued = ByteBuffer.allocate(size);
+            }
+            for (int i = 0; i < unappliedCount; i++) {
+                putGameMessage(queued, unapplied[i]);
+            }
+            queuedMessages = unappliedCount;
+            reconnecting = false;
+            queueChanged.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting in the outbound queue
+     * @return Queue depth in messages
+     */
+    public int getQueuedMessages () {
+        queueLock.lock();
+        try {
+            return queuedMessages;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes waiting in the outbound queue
+     * @return Queue depth in bytes
+     */
+    public int getQueuedBytes () {
+        queueLock.lock();
+        try {
+            return queued.position();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of writes the writer thread has made, each followed by one flush
+     * @return Flush count
+     */
+    public long getFlushCount () {
+        return flushCount;
+    }
+
+    /**
+     * Returns the number of messages written
+     * @return Message count
+     */
+    public long getMessagesFlushed () {
+        return messagesFlushed;
+    }
+
+    /**
+     * Returns the number of bytes written
+     * @return Byte count
+     */
+    public long getBytesFlushed () {
+        return bytesFlushed;
+    }
+
+    /**
+     * Returns the most messages written by one flush
+     * @return Largest flush in messages
+     */
+    public int getLargestFlush () {
+        return largestFlush;
+    }
+
+    /**
+     * Returns the number of messages discarded under the DROP policy
+     * @return Dropped message count
+     */
+    public long getDropped () {
+        queueLock.lock();
+        try {
+            return dropped;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a text message, encoded as UTF-8, followed by a newline
+     * @param message Message
+     * @throws IOException if the queue is full under the FAIL policy or the connection failed
+     */
+    private void sendText (String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        queueLock.lock();
+        try {
+            if (reserve(bytes.length + 1)) {
+                queued.put(bytes).put((byte) '\n');
+                commit();
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Makes room in the outbound queue according to the backpressure policy. Callers hold
+     * queueLock.
+     * @param size Message size in bytes
+     * @return true if the message fits, false if it is to be dropped
+     * @throws IOException if the queue is full under the FAIL policy or the connection failed
+     */
+    private boolean reserve (int size) throws IOException {
+        if (size > queued.capacity()) {
+            throw new IOException("Message larger than the outbound queue");
+        }
+        for (;;) {
+            // While a reader thread can resume the session, messages wait for it in the queue.
+            if (writeFailure != null && (session < 0 || reader == null)) {
+                throw writeFailure;
+            }
+            if (closing) {
+                throw new IOException("Connection closed");
+            }
+            if (queued.remaining() >= size) {
+                return true;
+            }
+            switch (backpressure) {
+                case DROP:
+                    dropped++;
+                    return false;
+                case FAIL:
+                    throw new IOException("Outbound queue full");
+                default:
+                    try {
+                        queueChanged.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for the outbound queue");
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Counts a message just added to the queue and wakes the writer if it was idle. Callers
+     * hold queueLock.
+     */
+    private void commit () {
+        if (queuedMessages++ == 0) {
+            queueChanged.signalAll();
+        }
+    }
+
+    /**
+     * Body of the writer thread: writes the queued messages in batches until the
+     * connection is closed and the queue is empty. After a failed write it waits for the
+     * session to be resumed on a new socket.
+     */
+    private void writeQueued () {
+        try {
+            for (;;) {
+                int batch;
+                OutputStream target;
+                queueLock.lock();
+                try {
+                    while ((queuedMessages == 0 || reconnecting || writeFailure != null) && !closing) {
+                        queueChanged.await();
+                    }
+                    if (queuedMessages == 0 || reconnecting || writeFailure != null) {
+                        return;
+                    }
+                    ByteBuffer full = queued;
+                    queued = writing;
+                    writing = full;
+                    batch = queuedMessages;
+                    queuedMessages = 0;
+                    target = out;
+                    // Senders blocked on a full queue now have room.
+                    queueChanged.signalAll();
+                } finally {
+                    queueLock.unlock();
+                }
+                try {
+                    target.write(writing.array(), 0, writing.position());
+                    target.flush();
+                } catch (IOException e) {
+                    queueLock.lock();
+                    try {
+                        // A write to a socket a resume has already replaced failing is no
+                        // news. Either way the adds and clears in the batch are kept to be
+                        // sent again.
+                        if (target == out) {
+                            writeFailure = e;
+                            queueChanged.signalAll();
+                        }
+                    } finally {
+                        queueLock.unlock();
+                    }
+                    writing.clear();
+                    continue;
+                }
+                flushCount++;
+                messagesFlushed += batch;
+                bytesFlushed += writing.position();
+                if (batch > largestFlush) {
+                    largestFlush = batch;
+                }
+                writing.clear();
+            }
+        } catch (InterruptedException e) {
+            // Daemon thread; nothing to clean up.
+        }
+    }
+
+    /**
+     * Checks if the line ending at the given newline is the server's binary answer
+     * @param newline Index of the newline
+     * @return true if the line is C4Messages.BINARY, false otherwise
+     */
+    private boolean isBinaryAnswer (int newline) {
+        return C4BinaryProtocol.isBinaryAnswer(buffer, lineStart, newline - lineStart);
+    }
+
+    /**
+     * Reads the server's answer to a request for the binary protocol
+     * @return true if the server answered C4Messages.BINARY, false otherwise, in which case
+     *         the line is the server's first text message and is left to be read
+     * @throws IOException
+     */
+    private boolean awaitBinaryAnswer () throws IOException {
+        int newline = nextLine();
+        if (newline >= 0 && isBinaryAnswer(newline)) {
+            lineStart = newline + 1;
+            return true;
+        }
+        // The next read must find the end of this line again.
+        scanned = lineStart;
+        return false;
+    }
+
+    /**
+     * Finds the newline ending the line at lineStart, reading from the socket as needed
+     * @return Index of the newline in the buffer, or -1 if the stream ended first
+     * @throws IOException
+     */
+    private int nextLine () throws IOException {
+        if (scanned < lineStart) {
+            scanned = lineStart;
+        }
+        for (;;) {
+            for (; scanned < end; scanned++) {
+                if (buffer[scanned] == '\n') {
+                    return scanned++;
+                }
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer, growing it if it is full, and
+     * reads more from the socket
+     * @return true if bytes were read, false at the end of the stream
+     * @throws IOException
+     */
+    private boolean fill () throws IOException {
+        if (lineStart > 0) {
+            System.arraycopy(buffer, lineStart, buffer, 0, end - lineStart);
+            end -= lineStart;
+            scanned = Math.max(scanned - lineStart, 0);
+            lineStart = 0;
+        }
+        if (end == buffer.length) {
+            buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+        }
+        int n;
+        try {
+            n = in.read(buffer, end, buffer.length - end);
+        } catch (IOException e) {
+            // A read cut short by closeConnection is a normal end, not a failure.
+            if (!socket.isClosed()) {
+                readFailure = e;
+            }
+            ended = true;
+            throw e;
+        }
+        if (n < 0) {
+            ended = true;
+            return false;
+        }
+        lastReadNanos = System.nanoTime();
+        readCount++;
+        bytesRead += n;
+        end += n;
+        return true;
     }
 
     /**
@@ -68,6 +1016,20 @@ public class C4ServerConnection {
      * @throws IOException
      */
     public void closeConnection() throws IOException {
+        queueLock.lock();
+        try {
+            closing = true;
+            queueChanged.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+        if (Thread.currentThread() != writer) {
+            try {
+                writer.join(CLOSE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         socket.close();
     }
 }
@@ -0,0 +1,481 @@
+/**
+ * Connect four solver that finds the best column to play in a given position.
+ * <P>
+ * The search is a negamax with alpha-beta pruning run as a series of null-window
+ * searches, with center-first move ordering refined by the number of threats a
+ * move creates, and a transposition table of position bounds. Positions are kept
+ * as two bitboards in the same layout as C4Model: <TT>current</TT> holds the
+ * pieces of the player to move and <TT>mask</TT> holds every piece on the board.
+ * <P>
+ * Scores are from the point of view of the player to move. A positive score means
+ * that player wins, and the sooner the win the larger the score: a win with the
+ * player's last piece scores 1, a win with the piece before that scores 2, and so
+ * on. A score of 0 is a draw and negative scores are losses.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4Solver {
+
+    private static final int WIDTH = C4BoardIntf.COLS;
+    private static final int HEIGHT = C4BoardIntf.ROWS;
+    private static final int SIZE = WIDTH * HEIGHT;
+
+    /**
+     * Lowest and highest scores a position that is not already decided can have.
+     */
+    public static final int MIN_SCORE = -SIZE / 2 + 3;
+    public static final int MAX_SCORE = (SIZE + 1) / 2 - 3;
+
+    static final long BOTTOM_MASK;
+    static final long BOARD_MASK;
+
+    /**
+     * Columns in the order they are searched, center first.
+     */
+    static final int[] COLUMN_ORDER = new int[WIDTH];
+
+    static {
+        long bottom = 0L;
+        for (int c = 0; c < WIDTH; c++) {
+            bottom |= 1L << (c * (HEIGHT + 1));
+        }
+        BOTTOM_MASK = bottom;
+        BOARD_MASK = bottom * ((1L << HEIGHT) - 1);
+        for (int i = 0; i < WIDTH; i++) {
+            COLUMN_ORDER[i] = WIDTH / 2 + (1 - 2 * (i % 2)) * (i + 1) / 2;
+        }
+    }
+
+    private static final int DEFAULT_TABLE_BITS = 22;
+
+    // Position being searched.
+    private long current;
+    private long mask;
+    private int moves;
+
+    private long nodeCount;
+    private int score;
+
+    private final int[] columnOrder = COLUMN_ORDER.clone();
+    private volatile boolean stopped;
+
+    private final C4TranspositionTable table;
+    private C4OpeningBook book;
+    private int bookPly = -1;
+
+    // Per-ply scratch space for move ordering, so the search never allocates.
+    private final long[][] sortedMoves = new long[SIZE][WIDTH];
+    private final int[][] sortedScores = new int[SIZE][WIDTH];
+
+    /**
+     * Constructor for C4Solver with a transposition table of 2^22 entries (32 MB)
+     */
+    public C4Solver () {
+        this(DEFAULT_TABLE_BITS);
+    }
+
+    /**
+     * Constructor for C4Solver with its own always-replace transposition table
+     * @param tableBits Base-2 logarithm of the number of transposition table entries
+     */
+    public C4Solver (int tableBits) {
+        this(new C4TranspositionTable(tableBits, C4TranspositionTable.Policy.REPLACE_ALWAYS));
+    }
+
+    /**
+     * Constructor for C4Solver
+     * @param table Transposition table to cache position bounds in
+     */
+    public C4Solver (C4TranspositionTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Finds the best column for the player to move in the given position. The player
+     * to move is player 1 if both players have the same number of pieces, player 2 otherwise.
+     * @param board Board to analyze
+     * @return Best column, or -1 if the game is already over
+     */
+    public int bestMove (C4BoardIntf board) {
+        if (board.hasWon() != null) {
+            return -1;
+        }
+        return bestMove(playerBoard(board, 1), playerBoard(board, 2));
+    }
+
+    /**
+     * Finds the best column for the player to move in a position given as bitboards
+     * @param p1 Player 1's pieces
+     * @param p2 Player 2's pieces
+     * @return Best column, or -1 if the board is full
+     * @throws SearchAbortedException if the search was stopped from another thread
+     */
+    int bestMove (long p1, long p2) {
+        mask = p1 | p2;
+        moves = Long.bitCount(mask);
+        current = (moves & 1) == 0 ? p1 : p2;
+        if (moves == SIZE) {
+            return -1;
+        }
+
+        // Take an immediate win if there is one.
+        long possible = possible();
+        long winning = winningPosition(current, mask) & possible;
+        if (winning != 0L) {
+            score = (SIZE + 1 - moves) / 2;
+            return column(winning & -winning);
+        }
+
+        // Solve each child; after the first, only ask whether it beats the best so far.
+        int bestColumn = -1;
+        int bestScore = -SIZE;
+        for (int i = 0; i < WIDTH; i++) {
+            int c = columnOrder[i];
+            long move = possible & columnMask(c);
+            if (move == 0L) {
+                continue;
+            }
+            play(move);
+            int s;
+            if (bestColumn != -1 && !canWinNext() && -negamax(-bestScore - 1, -bestScore) <= bestScore) {
+                s = bestScore;
+            } else {
+                s = -solve();
+            }
+            undo(move);
+            if (bestColumn == -1 || s > bestScore) {
+                bestColumn = c;
+                bestScore = s;
+            }
+        }
+        score = bestScore;
+        return bestColumn;
+    }
+
+    /**
+     * Gives the solver an opening book to consult before searching early positions
+     * @param book Opening book, or null for none
+     */
+    public void setOpeningBook (C4OpeningBook book) {
+        this.book = book;
+        this.bookPly = book == null ? -1 : book.getMaxPly();
+    }
+
+    /**
+     * Computes the exact score of a position given as bitboards
+     * @param current Pieces of the player to move
+     * @param mask All pieces
+     * @return Score for the player to move
+     */
+    int solvePosition (long current, long mask) {
+        this.current = current;
+        this.mask = mask;
+        this.moves = Long.bitCount(mask);
+        return solve();
+    }
+
+    /**
+     * Returns the score of the move found by the last call to bestMove()
+     * @return Score from the point of view of the player who was to move
+     */
+    public int getScore () {
+        return score;
+    }
+
+    /**
+     * Returns the number of positions searched since this solver was created
+     * @return Node count
+     */
+    public long getNodeCount () {
+        return nodeCount;
+    }
+
+    /**
+     * Stops or re-enables searching. A search running on another thread notices the
+     * stop within about a thousand nodes and bestMove() throws SearchAbortedException.
+     * The flag stays set until it is cleared again.
+     * @param stopped true to stop searching, false to allow it
+     */
+    public void setStopped (boolean stopped) {
+        this.stopped = stopped;
+    }
+
+    /**
+     * Rotates the column order used to break ties between equally promising moves, so that
+     * solvers sharing a transposition table explore different parts of the tree first
+     * @param shift Number of places to rotate, 0 for center first
+     */
+    void setOrderShift (int shift) {
+        for (int i = 0; i < WIDTH; i++) {
+            columnOrder[i] = COLUMN_ORDER[(i + shift) % WIDTH];
+        }
+    }
+
+    /**
+     * Clears the transposition table
+     */
+    public void reset () {
+        table.clear();
+    }
+
+    /**
+     * Reads one player's pieces from a board into a bitboard
+     * @param board Board to read
+     * @param playerNum Player number
+     * @return Bitboard of the player's pieces
+     * @throws IllegalArgumentException if the board is not the standard board
+     */
+    static long playerBoard (C4BoardIntf board, int playerNum) {
+        if (board.getRows() != HEIGHT || board.getCols() != WIDTH || board.getConnect() != 4) {
+            throw new IllegalArgumentException("Only the standard " + HEIGHT + "x" + WIDTH
+                    + " board can be searched");
+        }
+        if (board instanceof C4Model) {
+            C4Model model = (C4Model) board;
+            return playerNum == 1 ? model.getPlayer1Board() : model.getPlayer2Board();
+        }
+        if (board instanceof C4BoardSnapshot) {
+            C4BoardSnapshot snapshot = (C4BoardSnapshot) board;
+            return playerNum == 1 ? snapshot.getPlayer1Board() : snapshot.getPlayer2Board();
+        }
+        long b = 0L;
+        for (int r = 0; r < HEIGHT; r++) {
+            for (int c = 0; c < WIDTH; c++) {
+                if (playerNum == 1 ? board.hasPlayer1Marker(r, c) : board.hasPlayer2Marker(r, c)) {
+                    b |= 1L << (c * (HEIGHT + 1) + HEIGHT - 1 - r);
+                }
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Computes the exact score of the current position
+     * @return Score for the player to move
+     */
+    private int solve () {
+        if (canWinNext()) {
+            return (SIZE + 1 - moves) / 2;
+        }
+        if (moves <= bookPly) {
+            int s = book.lookup(key());
+            if (s != C4OpeningBook.NOT_FOUND) {
+                return s;
+            }
+        }
+        int min = -(SIZE - moves) / 2;
+        int max = (SIZE + 1 - moves) / 2;
+        // Narrow the score window with null-window searches, probing near 0 first.
+        while (min < max) {
+            int med = min + (max - min) / 2;
+            if (med <= 0 && min / 2 < med) {
+                med = min / 2;
+            } else if (med >= 0 && max / 2 > med) {
+                med = max / 2;
+            }
+            int r = negamax(med, med + 1);
+            if (r <= med) {
+                max = r;
+            } else {
+                min = r;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Negamax search with alpha-beta pruning. Assumes the player to move cannot win
+     * on this move.
+     * @param alpha Lower bound of the score window
+     * @param beta Upper bound of the score window
+     * @return Exact score if it lies in (alpha, beta), otherwise a bound on the
+     *          score on the same side of the window
+     */
+    private int negamax (int alpha, int beta) {
+        if ((++nodeCount & 0x3FF) == 0 && stopped) {
+            throw SearchAbortedException.INSTANCE;
+        }
+
+        long next = possibleNonLosingMoves();
+        if (next == 0L) {
+            // Every move lets the opponent win right away.
+            return -(SIZE - moves) / 2;
+        }
+        if (moves >= SIZE - 2) {
+            return 0;
+        }
+        if (moves <= bookPly) {
+            int s = book.lookup(key());
+            if (s != C4OpeningBook.NOT_FOUND) {
+                return s;
+            }
+        }
+
+        int min = -(SIZE - 2 - moves) / 2;
+        if (alpha < min) {
+            alpha = min;
+            if (alpha >= beta) {
+                return alpha;
+            }
+        }
+        int max = (SIZE - 1 - moves) / 2;
+
+        long key = key();
+        int val = table.get(key);
+        if (val != 0) {
+            if (val > MAX_SCORE - MIN_SCORE + 1) {
+                min = val + 2 * MIN_SCORE - MAX_SCORE - 2;
+                if (alpha < min) {
+                    alpha = min;
+                    if (alpha >= beta) {
+                        return alpha;
+                    }
+                }
+            } else {
+                max = val + MIN_SCORE - 1;
+            }
+        }
+        if (beta > max) {
+            beta = max;
+            if (alpha >= beta) {
+                return beta;
+            }
+        }
+
+        // Order moves by the number of threats they create, center first on ties.
+        long[] sorted = sortedMoves[moves];
+        int[] scores = sortedScores[moves];
+        int count = 0;
+        for (int i = WIDTH - 1; i >= 0; i--) {
+            long move = next & columnMask(columnOrder[i]);
+            if (move != 0L) {
+                int s = Long.bitCount(winningPosition(current | move, mask));
+                int pos = count++;
+                while (pos > 0 && scores[pos - 1] > s) {
+                    sorted[pos] = sorted[pos - 1];
+                    scores[pos] = scores[pos - 1];
+                    pos--;
+                }
+                sorted[pos] = move;
+                scores[pos] = s;
+            }
+        }
+
+        for (int i = count - 1; i >= 0; i--) {
+            long move = sorted[i];
+            play(move);
+            int s = -negamax(-beta, -alpha);
+            undo(move);
+            if (s >= beta) {
+                table.put(key, s + MAX_SCORE - 2 * MIN_SCORE + 2, SIZE - moves);
+                return s;
+            }
+            if (s > alpha) {
+                alpha = s;
+            }
+        }
+        table.put(key, alpha - MIN_SCORE + 1, SIZE - moves);
+        return alpha;
+    }
+
+    // Bitboard operations.
+
+    private void play (long move) {
+        current ^= mask;
+        mask |= move;
+        moves++;
+    }
+
+    private void undo (long move) {
+        mask ^= move;
+        current ^= mask;
+        moves--;
+    }
+
+    private long key () {
+        return current + mask;
+    }
+
+    private long possible () {
+        return (mask + BOTTOM_MASK) & BOARD_MASK;
+    }
+
+    private boolean canWinNext () {
+        return (winningPosition(current, mask) & possible()) != 0L;
+    }
+
+    private long possibleNonLosingMoves () {
+        long possible = possible();
+        long opponentWin = winningPosition(current ^ mask, mask);
+        long forced = possible & opponentWin;
+        if (forced != 0L) {
+            if ((forced & (forced - 1)) != 0L) {
+                // The opponent has two immediate wins; only one can be blocked.
+                return 0L;
+            }
+            possible = forced;
+        }
+        // Do not play directly below a cell where the opponent would win.
+        return possible & ~(opponentWin >>> 1);
+    }
+
+    static long columnMask (int c) {
+        return ((1L << HEIGHT) - 1) << (c * (HEIGHT + 1));
+    }
+
+    static int column (long move) {
+        return Long.numberOfTrailingZeros(move) / (HEIGHT + 1);
+    }
+
+    /**
+     * Computes the empty cells where the given player would complete four in a row
+     * @param position Bitboard of the player's pieces
+     * @param mask Bitboard of all pieces
+     * @return Bitboard of winning cells
+     */
+    static long winningPosition (long position, long mask) {
+        // Vertical.
+        long r = (position << 1) & (position << 2) & (position << 3);
+
+        // Horizontal.
+        long p = (position << (HEIGHT + 1)) & (position << 2 * (HEIGHT + 1));
+        r |= p & (position << 3 * (HEIGHT + 1));
+        r |= p & (position >>> (HEIGHT + 1));
+        p = (position >>> (HEIGHT + 1)) & (position >>> 2 * (HEIGHT + 1));
+        r |= p & (position << (HEIGHT + 1));
+        r |= p & (position >>> 3 * (HEIGHT + 1));
+
+        // Diagonal going down to the right.
+        p = (position << HEIGHT) & (position << 2 * HEIGHT);
+        r |= p & (position << 3 * HEIGHT);
+        r |= p & (position >>> HEIGHT);
+        p = (position >>> HEIGHT) & (position >>> 2 * HEIGHT);
+        r |= p & (position << HEIGHT);
+        r |= p & (position >>> 3 * HEIGHT);
+
+        // Diagonal going up to the right.
+        p = (position << (HEIGHT + 2)) & (position << 2 * (HEIGHT + 2));
+        r |= p & (position << 3 * (HEIGHT + 2));
+        r |= p & (position >>> (HEIGHT + 2));
+        p = (position >>> (HEIGHT + 2)) & (position >>> 2 * (HEIGHT + 2));
+        r |= p & (position << (HEIGHT + 2));
+        r |= p & (position >>> 3 * (HEIGHT + 2));
+
+        return r & (BOARD_MASK ^ mask);
+    }
+
+    /**
+     * Thrown out of a search that was stopped with setStopped(). Unwinding by exception
+     * keeps the aborted search from storing bogus bounds in the transposition table.
+     */
+    public static class SearchAbortedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        static final SearchAbortedException INSTANCE = new SearchAbortedException();
+
+        private SearchAbortedException () {
+            super("Search stopped", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Program that measures how C4ParallelSolver scales with the number of threads.
+ * <P>
+ * Usage: <TT>java C4SolverBenchmark <I>tablemb</I> <I>moves</I> ...</TT>
+ * <P>
+ * Each <I>moves</I> argument is a position given as the columns played so far,
+ * numbered from 1, for example <TT>4444441212</TT>. Every position is solved with
+ * 1, 2, 4 and 8 threads and with one thread per available processor, each run
+ * starting from an empty transposition table of <I>tablemb</I> megabytes. The
+ * program prints the time, the speedup over one thread and the nodes searched by
+ * each thread.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4SolverBenchmark {
+
+    /**
+     * Main method that runs the benchmark
+     *
+     * @param args Table size in megabytes, positions
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) usage();
+        int tableMb = Integer.parseInt(args[0]);
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = cores > 8 ? new int[] {1, 2, 4, 8, cores} : new int[] {1, 2, 4, 8};
+
+        for (int a = 1; a < args.length; a++) {
+            C4Model board = new C4Model();
+            for (char ch : args[a].toCharArray()) {
+                board.play(ch - '1');
+            }
+            System.out.printf("position %s%n", args[a]);
+            double baseMillis = 0.0;
+            for (int threads : threadCounts) {
+                C4TranspositionTable table =
+                        C4TranspositionTable.ofMegabytes(tableMb, C4TranspositionTable.Policy.REPLACE_ALWAYS);
+                C4ParallelSolver solver = new C4ParallelSolver(threads, table);
+                long start = System.nanoTime();
+                int column = solver.bestMove(board);
+                double millis = (System.nanoTime() - start) / 1e6;
+                solver.shutdown();
+                if (threads == 1) {
+                    baseMillis = millis;
+                }
+
+                long total = 0L;
+                StringBuilder perThread = new StringBuilder();
+                for (long n : solver.getNodeCounts()) {
+                    total += n;
+                    perThread.append(' ').append(n);
+                }
+                System.out.printf("  %2d threads: column %d score %d, %.1f ms, speedup %.2f, %.1f Mnodes/s, nodes%s%n",
+                        threads, column + 1, solver.getScore(), millis, baseMillis / millis,
+                        total / millis / 1000.0, perThread);
+            }
+        }
+    }
+
+    /**
+     * Print a usage message and exit.
+     */
+    private static void usage()
+    {
+        System.err.println ("Usage: java C4SolverBenchmark <tablemb> <moves> ...");
+        System.exit (1);
+    }
+}
@@ -0,0 +1,393 @@
+/**
+ * Connect four move search that always answers within a time or node budget.
+ * <P>
+ * The search deepens one ply at a time with a depth-limited negamax, scoring the
+ * positions at the horizon by the threats and center pieces each player has. When the
+ * budget runs out, or the search is cancelled, the move of the deepest completed
+ * iteration is returned. Each iteration tries the previous principal variation first,
+ * then the killer moves of the ply, then the remaining moves by history score, so most
+ * of the work of one iteration is reused by the next. Wins and losses are scored as in
+ * C4Solver, offset by WIN_SCORE, and the search stops early once the result is decided.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4TimedSearch {
+
+    private static final int WIDTH = C4BoardIntf.COLS;
+    private static final int HEIGHT = C4BoardIntf.ROWS;
+    private static final int SIZE = WIDTH * HEIGHT;
+
+    /**
+     * Offset added to the magnitude of a decided score; heuristic scores stay below it.
+     */
+    public static final int WIN_SCORE = 1000;
+
+    private static final int INFINITY = 2 * WIN_SCORE;
+    private static final long CENTER_MASK = C4Solver.columnMask(WIDTH / 2);
+
+    // Position being searched.
+    private long current;
+    private long mask;
+    private int moves;
+
+    // Limits of the running search.
+    private volatile boolean cancelled;
+    private long deadline;
+    private long nodeLimit;
+    private long nodeCount;
+
+    // Result of the deepest completed iteration.
+    private int bestColumn;
+    private int score;
+    private int depth;
+
+    // Move ordering: principal variation, killer moves and history scores.
+    private final long[][] pv = new long[SIZE + 1][SIZE + 1];
+    private final int[] pvLength = new int[SIZE + 1];
+    private final long[] prevPv = new long[SIZE + 1];
+    private int prevPvLength;
+    private boolean followPv;
+    private final long[][] killers = new long[SIZE][2];
+    private final int[][] history = new int[2][WIDTH * (HEIGHT + 1)];
+
+    // Per-ply scratch space for move ordering, so the search never allocates.
+    private final long[][] sortedMoves = new long[SIZE][WIDTH];
+    private final int[][] sortedScores = new int[SIZE][WIDTH];
+
+    private C4OpeningBook book;
+
+    /**
+     * Gives the search an opening book to consult before searching
+     * @param book Opening book, or null for none
+     */
+    public void setOpeningBook (C4OpeningBook book) {
+        this.book = book;
+    }
+
+    /**
+     * Finds a move for the player to move in the given position within the given budget
+     * @param board Board to analyze
+     * @param timeMillis Time budget in milliseconds
+     * @param maxNodes Node budget, or 0 for no node limit
+     * @return Best column found, or -1 if the game is already over
+     */
+    public int search (C4BoardIntf board, long timeMillis, long maxNodes) {
+        deadline = System.nanoTime() + timeMillis * 1000000L;
+        nodeLimit = maxNodes > 0 ? maxNodes : Long.MAX_VALUE;
+        nodeCount = 0;
+        depth = 0;
+        score = 0;
+        bestColumn = -1;
+        if (board.hasWon() != null) {
+            return -1;
+        }
+        long p1 = C4Solver.playerBoard(board, 1);
+        long p2 = C4Solver.playerBoard(board, 2);
+        mask = p1 | p2;
+        moves = Long.bitCount(mask);
+        current = (moves & 1) == 0 ? p1 : p2;
+        if (moves == SIZE) {
+            return -1;
+        }
+
+        long possible = possible();
+        bestColumn = fallbackColumn(possible);
+        if (book != null && moves < book.getMaxPly() && bookMove(possible)) {
+            return bestColumn;
+        }
+
+        for (int[] h : history) {
+            java.util.Arrays.fill(h, 0);
+        }
+        for (long[] k : killers) {
+            k[0] = 0L;
+            k[1] = 0L;
+        }
+        prevPvLength = 0;
+        try {
+            for (int d = 1; d <= SIZE - moves; d++) {
+                followPv = true;
+                int s = negamax(d, -INFINITY, INFINITY, 0);
+                // The iteration completed: keep its result and principal variation.
+                bestColumn = C4Solver.column(pv[0][0]);
+                score = s;
+                depth = d;
+                prevPvLength = pvLength[0];
+                System.arraycopy(pv[0], 0, prevPv, 0, prevPvLength);
+                if (s >= WIN_SCORE || s <= -WIN_SCORE) {
+                    break;
+                }
+            }
+        } catch (C4Solver.SearchAbortedException exc) {
+            // Out of budget: answer with the last completed iteration.
+        }
+        return bestColumn;
+    }
+
+    /**
+     * Stops a search running on another thread; search() then returns the best move found so far.
+     * A search that has not started yet stops at once, so a cancel sent before the thread gets
+     * to search() is not lost. The search stays cancelled until clearCancel().
+     */
+    public void cancel () {
+        cancelled = true;
+    }
+
+    /**
+     * Lets searches run again after cancel(). Call it before handing the search to whoever
+     * may cancel it, not from the searching thread.
+     */
+    public void clearCancel () {
+        cancelled = false;
+    }
+
+    /**
+     * Checks if the search was cancelled
+     * @return true if cancel() was called since the last clearCancel(), false otherwise
+     */
+    public boolean isCancelled () {
+        return cancelled;
+    }
+
+    /**
+     * Returns the score of the move found by the last search
+     * @return Score from the point of view of the player who was to move
+     */
+    public int getScore () {
+        return score;
+    }
+
+    /**
+     * Returns the depth of the deepest iteration completed by the last search
+     * @return Depth in plies, or 0 if the move came from the opening book or a fallback
+     */
+    public int getDepth () {
+        return depth;
+    }
+
+    /**
+     * Returns the number of positions searched by the last search
+     * @return Node count
+     */
+    public long getNodeCount () {
+        return nodeCount;
+    }
+
+    /**
+     * Depth-limited negamax with alpha-beta pruning
+     * @param d Remaining depth
+     * @param alpha Lower bound of the score window
+     * @param beta Upper bound of the score window
+     * @param ply Distance from the root
+     * @return Score for the player to move
+     */
+    private int negamax (int d, int alpha, int beta, int ply) {
+        if ((++nodeCount & 0x3FF) == 0 && (cancelled || nodeCount >= nodeLimit || System.nanoTime() >= deadline)) {
+            throw C4Solver.SearchAbortedException.INSTANCE;
+        }
+        pvLength[ply] = 0;
+
+        long possible = possible();
+        long winning = C4Solver.winningPosition(current, mask) & possible;
+        if (winning != 0L) {
+            pv[ply][0] = winning & -winning;
+            pvLength[ply] = 1;
+            return WIN_SCORE + (SIZE + 1 - moves) / 2;
+        }
+        long next = possibleNonLosingMoves(possible);
+        if (next == 0L) {
+            // Every move lets the opponent win; play any of them.
+            pv[ply][0] = possible & -possible;
+            pvLength[ply] = 1;
+            return -(WIN_SCORE + (SIZE - moves) / 2);
+        }
+        if (moves >= SIZE - 2) {
+            pv[ply][0] = next & -next;
+            pvLength[ply] = 1;
+            return 0;
+        }
+        if (d == 0) {
+            return evaluate();
+        }
+
+        int count = orderMoves(next, ply);
+        long[] sorted = sortedMoves[moves];
+        int best = -INFINITY;
+        for (int i = count - 1; i >= 0; i--) {
+            long move = sorted[i];
+            play(move);
+            int s = -negamax(d - 1, -beta, -alpha, ply + 1);
+            undo(move);
+            followPv = false;
+            if (s > best) {
+                best = s;
+                pv[ply][0] = move;
+                System.arraycopy(pv[ply + 1], 0, pv[ply], 1, pvLength[ply + 1]);
+                pvLength[ply] = pvLength[ply + 1] + 1;
+            }
+            if (s > alpha) {
+                alpha = s;
+            }
+            if (alpha >= beta) {
+                if (killers[ply][0] != move) {
+                    killers[ply][1] = killers[ply][0];
+                    killers[ply][0] = move;
+                }
+                history[moves & 1][Long.numberOfTrailingZeros(move)] += d * d;
+                break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Sorts the candidate moves of the current position into the scratch arrays of its ply,
+     * best last: principal variation move, then killers, then history plus threats created
+     * @param next Candidate moves
+     * @param ply Distance from the root
+     * @return Number of moves
+     */
+    private int orderMoves (long next, int ply) {
+        long pvMove = 0L;
+        if (followPv) {
+            if (ply < prevPvLength) {
+                pvMove = prevPv[ply];
+            } else {
+                followPv = false;
+            }
+        }
+        long[] sorted = sortedMoves[moves];
+        int[] scores = sortedScores[moves];
+        int count = 0;
+        for (int i = WIDTH - 1; i >= 0; i--) {
+            long move = next & C4Solver.columnMask(C4Solver.COLUMN_ORDER[i]);
+            if (move == 0L) {
+                continue;
+            }
+            int s;
+            if (move == pvMove) {
+                s = Integer.MAX_VALUE;
+            } else if (move == killers[ply][0]) {
+                s = Integer.MAX_VALUE - 2;
+            } else if (move == killers[ply][1]) {
+                s = Integer.MAX_VALUE - 3;
+            } else {
+                s = history[moves & 1][Long.numberOfTrailingZeros(move)]
+                        + Long.bitCount(C4Solver.winningPosition(current | move, mask));
+            }
+            int pos = count++;
+            while (pos > 0 && scores[pos - 1] > s) {
+                sorted[pos] = sorted[pos - 1];
+                scores[pos] = scores[pos - 1];
+                pos--;
+            }
+            sorted[pos] = move;
+            scores[pos] = s;
+        }
+        if (pvMove == 0L || scores[count - 1] != Integer.MAX_VALUE) {
+            // The principal variation move was pruned here; stop following it.
+            followPv = false;
+        }
+        return count;
+    }
+
+    /**
+     * Scores a position at the search horizon from the point of view of the player to move
+     * @return Heuristic score, well below WIN_SCORE in magnitude
+     */
+    private int evaluate () {
+        long opponent = current ^ mask;
+        int threats = Long.bitCount(C4Solver.winningPosition(current, mask))
+                - Long.bitCount(C4Solver.winningPosition(opponent, mask));
+        int center = Long.bitCount(current & CENTER_MASK) - Long.bitCount(opponent & CENTER_MASK);
+        return 8 * threats + 2 * center;
+    }
+
+    /**
+     * Picks the best move from the opening book, if the book has every child of the position
+     * @param possible Legal moves
+     * @return true if the book gave a move, false otherwise
+     */
+    private boolean bookMove (long possible) {
+        int bestScore = Integer.MIN_VALUE;
+        int column = -1;
+        long winning = C4Solver.winningPosition(current, mask) & possible;
+        if (winning != 0L) {
+            return false;
+        }
+        for (int i = 0; i < WIDTH; i++) {
+            int c = C4Solver.COLUMN_ORDER[i];
+            long move = possible & C4Solver.columnMask(c);
+            if (move == 0L) {
+                continue;
+            }
+            play(move);
+            int s = book.lookup(current + mask);
+            undo(move);
+            if (s == C4OpeningBook.NOT_FOUND) {
+                return false;
+            }
+            if (-s > bestScore) {
+                bestScore = -s;
+                column = c;
+            }
+        }
+        bestColumn = column;
+        score = bestScore > 0 ? WIN_SCORE + bestScore : bestScore < 0 ? -WIN_SCORE + bestScore : 0;
+        return column >= 0;
+    }
+
+    /**
+     * Picks a move to answer with if not even the first iteration completes
+     * @param possible Legal moves
+     * @return Column of a non-losing move nearest the center, or of any legal move
+     */
+    private int fallbackColumn (long possible) {
+        long winning = C4Solver.winningPosition(current, mask) & possible;
+        if (winning != 0L) {
+            return C4Solver.column(winning & -winning);
+        }
+        long candidates = possibleNonLosingMoves(possible);
+        if (candidates == 0L) {
+            candidates = possible;
+        }
+        for (int i = 0; i < WIDTH; i++) {
+            int c = C4Solver.COLUMN_ORDER[i];
+            if ((candidates & C4Solver.columnMask(c)) != 0L) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    // Bitboard operations, as in C4Solver.
+
+    private void play (long move) {
+        current ^= mask;
+        mask |= move;
+        moves++;
+    }
+
+    private void undo (long move) {
+        mask ^= move;
+        current ^= mask;
+        moves--;
+    }
+
+    private long possible () {
+        return (mask + C4Solver.BOTTOM_MASK) & C4Solver.BOARD_MASK;
+    }
+
+    private long possibleNonLosingMoves (long possible) {
+        long opponentWin = C4Solver.winningPosition(current ^ mask, mask);
+        long forced = possible & opponentWin;
+        if (forced != 0L) {
+            if ((forced & (forced - 1)) != 0L) {
+                return 0L;
+            }
+            possible = forced;
+        }
+        return possible & ~(opponentWin >>> 1);
+    }
+}
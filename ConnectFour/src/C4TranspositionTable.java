@@ -0,0 +1,138 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Fixed-size, lossy transposition table for connect four position keys.
+ * <P>
+ * The table is a single <TT>long[]</TT> of 2^n entries with no per-entry objects.
+ * A 49-bit position key is split into an n-bit index, which picks the slot, and
+ * the remaining high bits, kept as a 32-bit check in the entry. With n &ge; 17 the
+ * index and check together hold the whole key, so a hit is always the right
+ * position. Each entry packs the check, a search depth and an 8-bit value; a value
+ * of 0 marks an empty slot. When two positions map to the same slot one of them
+ * is dropped, according to the table's replacement policy.
+ * <P>
+ * The table may be shared by solvers on several threads without locking. Entries are
+ * read and written as single 64-bit opaque accesses, so a reader sees either a whole
+ * old entry or a whole new one, never a mix of the two.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4TranspositionTable {
+
+    /**
+     * Smallest table size, in bits of index, that still stores 49-bit keys exactly.
+     */
+    public static final int MIN_SIZE_BITS = 49 - 32;
+
+    /**
+     * Largest table size, in bits of index.
+     */
+    public static final int MAX_SIZE_BITS = 30;
+
+    /**
+     * What to do when a new entry maps to a slot holding a different position.
+     */
+    public enum Policy {
+        /** Always overwrite the old entry. */
+        REPLACE_ALWAYS,
+        /** Keep the old entry if it was searched deeper than the new one. */
+        DEPTH_PREFERRED
+    }
+
+    private static final VarHandle ENTRY = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] entries;
+    private final int indexMask;
+    private final int sizeBits;
+    private final Policy policy;
+
+    /**
+     * Constructor for C4TranspositionTable
+     * @param sizeBits Base-2 logarithm of the number of entries, from MIN_SIZE_BITS to MAX_SIZE_BITS
+     * @param policy Replacement policy
+     */
+    public C4TranspositionTable (int sizeBits, Policy policy) {
+        if (sizeBits < MIN_SIZE_BITS || sizeBits > MAX_SIZE_BITS) {
+            throw new IllegalArgumentException("Table size bits must be between "
+                    + MIN_SIZE_BITS + " and " + MAX_SIZE_BITS + ": " + sizeBits);
+        }
+        this.entries = new long[1 << sizeBits];
+        this.indexMask = entries.length - 1;
+        this.sizeBits = sizeBits;
+        this.policy = policy;
+    }
+
+    /**
+     * Creates the largest table that fits in the given amount of memory
+     * @param megabytes Memory budget in megabytes
+     * @param policy Replacement policy
+     * @return New table
+     */
+    public static C4TranspositionTable ofMegabytes (int megabytes, Policy policy) {
+        long entries = ((long) megabytes << 20) / 8;
+        int bits = 63 - Long.numberOfLeadingZeros(Math.max(entries, 1L));
+        return new C4TranspositionTable(Math.max(MIN_SIZE_BITS, Math.min(MAX_SIZE_BITS, bits)), policy);
+    }
+
+    /**
+     * Looks up the value stored for a position
+     * @param key Position key
+     * @return Stored value, or 0 if the position is not in the table
+     */
+    public int get (long key) {
+        long e = (long) ENTRY.getOpaque(entries, (int) key & indexMask);
+        return (int) (e >>> 32) == check(key) ? (int) (e & 0xFF) : 0;
+    }
+
+    /**
+     * Stores a value for a position
+     * @param key Position key
+     * @param value Value from 1 to 255
+     * @param depth Amount of search behind the value, from 0 to 255
+     */
+    public void put (long key, int value, int depth) {
+        int i = (int) key & indexMask;
+        int check = check(key);
+        if (policy == Policy.DEPTH_PREFERRED) {
+            long old = (long) ENTRY.getOpaque(entries, i);
+            if (old != 0L && (int) (old >>> 32) != check && ((old >>> 8) & 0xFF) > depth) {
+                return;
+            }
+        }
+        ENTRY.setOpaque(entries, i, ((long) check << 32) | (depth << 8) | value);
+    }
+
+    /**
+     * Empties the table
+     */
+    public void clear () {
+        java.util.Arrays.fill(entries, 0L);
+    }
+
+    /**
+     * Returns the number of entries the table can hold
+     * @return Capacity
+     */
+    public int getCapacity () {
+        return entries.length;
+    }
+
+    /**
+     * Returns the replacement policy of the table
+     * @return Policy
+     */
+    public Policy getPolicy () {
+        return policy;
+    }
+
+    /**
+     * Returns the bits of a key that are not part of its slot index
+     * @param key Position key
+     * @return 32-bit check
+     */
+    private int check (long key) {
+        return (int) (key >>> sizeBits);
+    }
+}
@@ -28,13 +28,22 @@ public class C4UI
     private C4Panel boardPanel;
     private JTextField message;
     private JButton newGameButton;
+    private JButton engineButton;
     private C4ViewController viewController;
 
     /**
      * Informs the board panel to repaint the board
      */
     public void repaintBoard () {
-        boardPanel.repaint();
+        boardPanel.repaintBoard();
+    }
+
+    /**
+     * Hands the board panel a new board to display. May be called from any thread.
+     * @param board Immutable board
+     */
+    public void showBoard (C4BoardIntf board) {
+        boardPanel.setBoard(board);
     }
 
     /**
@@ -74,7 +83,7 @@ public class C4UI
         p1.setBorder (BorderFactory.createEmptyBorder (10, 10, 10, 10));
 
         // Create and add widgets.
-        boardPanel = new C4Panel (c4board);
+        boardPanel = new C4Panel (c4board, true);
         boardPanel.setAlignmentX (0.5f);
         p1.add (boardPanel);
         p1.add (Box.createVerticalStrut (10));
@@ -93,7 +102,11 @@ public class C4UI
         newGameButton.setAlignmentY (0.5f);
         newGameButton.setEnabled (false);
         p2.add (newGameButton);
+        p2.add (Box.createHorizontalStrut (10));
 
+        engineButton = new JButton ("Engine Move");
+        engineButton.setAlignmentY (0.5f);
+        p2.add (engineButton);
 
         // Clicking the Connect Four panel informs the view listener.
         boardPanel.addMouseListener (new MouseAdapter() {
@@ -116,6 +129,8 @@ public class C4UI
             }
         });
 
+        // Clicking the Engine Move button lets the solver play this turn.
+        engineButton.addActionListener (e -> viewController.playEngineMove());
 
         // Closing the window exits the client.
         frame.setDefaultCloseOperation (JFrame.EXIT_ON_CLOSE);
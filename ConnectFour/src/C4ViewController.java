@@ -6,7 +6,19 @@
  */
 public class C4ViewController {
 
+    /**
+     * Time the engine may think about a move, in milliseconds. Bot moves must go out within
+     * 100 ms at the 99th percentile; starting the thread, finishing the 1024 nodes between
+     * deadline checks and sending the move come on top of the budget, so it leaves 20 ms
+     * for them.
+     */
+    private static final long ENGINE_BUDGET_MILLIS = 80;
+
     C4Controller gameController;
+    C4ModelController modelController;
+    private C4TimedSearch engine;
+    private C4OpeningBook book;
+    private boolean engineBusy;
 
     /**
      * Constructor for the C4ViewController
@@ -16,12 +28,24 @@ public class C4ViewController {
         this.gameController = gameController;
     }
 
+    /**
+     * Gives C4ViewController access to the model controller
+     * @param modelController The controller for the model
+     */
+    public void addModelController (C4ModelController modelController) {
+        this.modelController = modelController;
+    }
+
     /**
      * Informs the game controller to send a message to the server that a piece is to be added.
+     * Clicks on a full column are ignored without contacting the server.
      * @param c Column
      * @throws Exception
      */
     public void addPiece (int c) throws Exception {
+        if (modelController != null && modelController.isColumnFull(c)) {
+            return;
+        }
         if (gameController.getCurrGameState() == C4Controller.GameState.PLAYER_TURN) {
             gameController.sendGameMessage(C4Messages.ADD + " " + gameController.playerNum + " " + c);
         }
@@ -34,4 +58,54 @@ public class C4ViewController {
     public void clearBoard () throws Exception {
         gameController.sendGameMessage(C4Messages.CLEAR);
     }
+
+    /**
+     * Gives the engine an opening book to consult before searching
+     * @param book The opening book
+     */
+    public synchronized void setOpeningBook (C4OpeningBook book) {
+        this.book = book;
+        if (engine != null) {
+            engine.setOpeningBook(book);
+        }
+    }
+
+    /**
+     * Hands the player's turn to the built-in engine. The search runs on its own thread for at most
+     * ENGINE_BUDGET_MILLIS and the chosen column is sent to the server as if the player had clicked it.
+     * Does nothing if it is not the player's turn or the engine is already thinking. If the turn
+     * changes while the engine is thinking, the search is cancelled and no move is sent.
+     */
+    public synchronized void playEngineMove () {
+        if (engineBusy || modelController == null
+                || gameController.getCurrGameState() != C4Controller.GameState.PLAYER_TURN) {
+            return;
+        }
+        if (engine == null) {
+            engine = new C4TimedSearch();
+            engine.setOpeningBook(book);
+        }
+        engineBusy = true;
+        engine.clearCancel();
+        gameController.setEngineSearch(engine);
+        // The turn may have changed before the engine was registered to be cancelled.
+        if (gameController.getCurrGameState() != C4Controller.GameState.PLAYER_TURN) {
+            engine.cancel();
+        }
+        new Thread(() -> {
+            try {
+                int c = modelController.findBestMove(engine, ENGINE_BUDGET_MILLIS);
+                if (c >= 0 && !engine.isCancelled()) {
+                    addPiece(c);
+                }
+            } catch (Exception exc) {
+                System.err.println(exc);
+            } finally {
+                gameController.setEngineSearch(null);
+                synchronized (this) {
+                    engineBusy = false;
+                }
+            }
+        }).start();
+    }
 }
@@ -0,0 +1,358 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class CaptureReplay is a program that plays a capture written by SocketSniffer
+ * back against a server and measures how the server keeps up.
+ * <P>
+ * Usage: <TT>java CaptureReplay <I>capturefile</I> <I>host</I> <I>port</I>
+ * <I>speed</I></TT>
+ * <P>
+ * For each connection in the capture, the program opens a connection to the
+ * server at the given <I>host</I> and <I>port</I> when the original client
+ * connected, sends the messages the original client sent, and closes the
+ * connection when the original client closed it. Messages are sent at their
+ * captured times divided by <I>speed</I>; a <I>speed</I> of 1 reproduces the
+ * original timing, and a <I>speed</I> of <TT>max</TT> sends every message as
+ * soon as the previous one is sent. At <TT>max</TT> speed, messages on
+ * different connections may reach the server in a different order than they
+ * did originally, so the server may reject some moves as out of turn.
+ * <P>
+ * The server's replies are read on a separate thread and split into messages as
+ * SocketSniffer splits them: text lines until the server answers
+ * <TT>binary</TT>, and C4BinaryProtocol frames after it. The latency of a
+ * message is the time from sending it to receiving the next message on the
+ * same connection. When the replay is done, the program prints the message
+ * rate, the number of messages received compared to the capture, and the
+ * latency percentiles.
+ *
+ * @author  Alberto Scicali
+ * @version 0.1.0
+ */
+public class CaptureReplay
+{
+
+// Hidden constants.
+
+    // How long to wait for the server to close its connections after the last
+    // message, in nanoseconds.
+    private static final long QUIET_NANOS = 2000000000L;
+
+// Hidden data members.
+
+    private static InetSocketAddress serverAddress;
+    private static final Selector selector;
+    private static final ConcurrentLinkedQueue<Replayed> pending =
+            new ConcurrentLinkedQueue<Replayed>();
+    private static final AtomicInteger open = new AtomicInteger();
+    private static final AtomicLong received = new AtomicLong();
+    private static volatile long lastReceived;
+
+    // Latencies in nanoseconds, only touched by the reader thread until it
+    // finishes.
+    private static long[] latencies = new long [1 << 16];
+    private static int latencyCount;
+
+    static
+    {
+        try
+        {
+            selector = Selector.open();
+        }
+        catch (IOException exc)
+        {
+            throw new ExceptionInInitializerError (exc);
+        }
+    }
+
+    /**
+     * Class Replayed holds the state of one replayed connection.
+     *
+     * @author  Alberto Scicali
+     * @version 0.1.0
+     */
+    private static class Replayed
+    {
+        SocketChannel channel;
+        ByteBuffer in = ByteBuffer.allocate (4096);
+        boolean binary;                        // True once replies are frames.
+        AtomicLong sentAt = new AtomicLong();  // 0 if no reply is awaited.
+
+        Replayed
+        (SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+    }
+
+// Prevent construction.
+
+    private CaptureReplay()
+    {
+    }
+
+// Main program.
+
+    /**
+     * Main program.
+     */
+    public static void main
+    (String[] args)
+            throws Exception
+    {
+        // Parse command line arguments.
+        if (args.length != 4) usage();
+        SnifferCapture capture = new SnifferCapture (args[0]);
+        serverAddress = new InetSocketAddress (args[1], Integer.parseInt (args[2]));
+        double speed = args[3].equals ("max") ? 0.0 : Double.parseDouble (args[3]);
+        if (speed < 0.0) usage();
+
+        Thread reader = new Thread ("CaptureReplay-reader")
+        {
+            public void run()
+            {
+                readReplies();
+            }
+        };
+        reader.setDaemon (true);
+        reader.start();
+
+        HashMap<Integer,Replayed> conns = new HashMap<Integer,Replayed>();
+        byte[] msg = new byte [1024];
+        long firstNanos = 0L;
+        boolean first = true;
+        long sent = 0L;
+        long expected = 0L;
+        long start = System.nanoTime();
+        while (capture.next())
+        {
+            if (first)
+            {
+                firstNanos = capture.getNanos();
+                first = false;
+            }
+            if (! capture.isFromClient())
+            {
+                if (! capture.isNote())
+                    ++ expected;
+                continue;
+            }
+            if (speed > 0.0)
+            {
+                long due = start + (long) ((capture.getNanos() - firstNanos)/speed);
+                long now;
+                while ((now = System.nanoTime()) < due)
+                    LockSupport.parkNanos (due - now);
+            }
+            if (msg.length < capture.getLength())
+                msg = new byte [capture.getLength()];
+            capture.getBytes (msg);
+            Integer key = capture.getConnection();
+            Replayed r = conns.get (key);
+            if (capture.isNote())
+            {
+                String note = new String (msg, 0, capture.getLength(), StandardCharsets.US_ASCII);
+                if (note.equals ("[connected]") && r == null)
+                {
+                    conns.put (key, connect());
+                }
+                else if (note.equals ("[closed]") && r != null)
+                {
+                    conns.remove (key);
+                    try { r.channel.shutdownOutput(); } catch (IOException exc) { }
+                }
+            }
+            else if (r != null && r.channel.isOpen())
+            {
+                ByteBuffer out = ByteBuffer.wrap (msg, 0, capture.getLength());
+                r.sentAt.compareAndSet (0L, System.nanoTime());
+                try
+                {
+                    while (out.hasRemaining())
+                        if (r.channel.write (out) == 0)
+                            Thread.yield();
+                    ++ sent;
+                }
+                catch (IOException exc)
+                {
+                    conns.remove (key);
+                }
+            }
+        }
+        long sendNanos = System.nanoTime() - start;
+
+        // Give the server time to answer the last messages.
+        for (Replayed r : conns.values())
+            try { r.channel.shutdownOutput(); } catch (IOException exc) { }
+        lastReceived = System.nanoTime();
+        while (open.get() > 0 && System.nanoTime() - lastReceived < QUIET_NANOS)
+            Thread.sleep (10);
+        reader.interrupt();
+        selector.wakeup();
+        reader.join();
+
+        // Print the results.
+        System.out.printf ("%d messages sent in %.3f sec, %.1f messages/sec%n",
+                sent, sendNanos/1e9, sent/(sendNanos/1e9));
+        System.out.printf ("%d messages received, %d in the capture%n",
+                received.get(), expected);
+        long[] sorted = Arrays.copyOf (latencies, latencyCount);
+        Arrays.sort (sorted);
+        if (sorted.length > 0)
+            System.out.printf ("latency usec: p50 %.1f  p90 %.1f  p99 %.1f  max %.1f (%d samples)%n",
+                    percentile (sorted, 0.50)/1e3, percentile (sorted, 0.90)/1e3,
+                    percentile (sorted, 0.99)/1e3, sorted[sorted.length - 1]/1e3,
+                    sorted.length);
+    }
+
+// Hidden operations.
+
+    /**
+     * Open a connection to the server and hand it to the reader thread.
+     */
+    private static Replayed connect()
+            throws IOException
+    {
+        SocketChannel channel = SocketChannel.open (serverAddress);
+        channel.socket().setTcpNoDelay (true);
+        channel.configureBlocking (false);
+        Replayed r = new Replayed (channel);
+        open.incrementAndGet();
+        pending.add (r);
+        selector.wakeup();
+        return r;
+    }
+
+    /**
+     * Read the server's replies on every connection until interrupted.
+     */
+    private static void readReplies()
+    {
+        while (! Thread.currentThread().isInterrupted())
+        {
+            try
+            {
+                selector.select();
+                Replayed r;
+                while ((r = pending.poll()) != null)
+                    r.channel.register (selector, SelectionKey.OP_READ, r);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable())
+                        read ((Replayed) key.attachment());
+                }
+            }
+            catch (IOException exc)
+            {
+                System.err.println (exc);
+            }
+        }
+    }
+
+    /**
+     * Read from a connection, counting messages and recording latencies. A
+     * message cut short by the end of the read is counted when the rest
+     * arrives.
+     */
+    private static void read
+    (Replayed r)
+    {
+        int n;
+        try
+        {
+            n = r.channel.read (r.in);
+        }
+        catch (IOException exc)
+        {
+            n = -1;
+        }
+        if (n == -1)
+        {
+            try { r.channel.close(); } catch (IOException exc) { }
+            open.decrementAndGet();
+            return;
+        }
+        long now = System.nanoTime();
+        lastReceived = now;
+        byte[] b = r.in.array();
+        int end = r.in.position();
+        int pos = 0;
+        int messages = 0;
+        while (pos < end)
+        {
+            int len;
+            if (r.binary)
+            {
+                len = C4BinaryProtocol.frameLength (b, pos, end - pos);
+                if (len == 0)
+                    break;
+                // After a bad frame there is no telling where the next one starts.
+                if (len < 0)
+                    len = end - pos;
+            }
+            else
+            {
+                int i = pos;
+                while (i < end && b[i] != '\n')
+                    ++ i;
+                if (i == end)
+                    break;
+                len = i + 1 - pos;
+                r.binary = C4BinaryProtocol.isBinaryAnswer (b, pos, len - 1);
+            }
+            pos += len;
+            ++ messages;
+        }
+        if (pos == 0 && end == b.length)
+            pos = end;  // A line longer than the buffer; drop it.
+        r.in.position (pos);
+        r.in.limit (end);
+        r.in.compact();
+        if (messages == 0)
+            return;
+        received.addAndGet (messages);
+        long sentAt = r.sentAt.getAndSet (0L);
+        if (sentAt != 0L)
+        {
+            if (latencyCount == latencies.length)
+                latencies = Arrays.copyOf (latencies, 2*latencyCount);
+            latencies[latencyCount++] = now - sentAt;
+        }
+    }
+
+    /**
+     * Returns the given percentile of a sorted array.
+     */
+    private static long percentile
+    (long[] sorted,
+     double p)
+    {
+        int i = (int) Math.ceil (p*sorted.length) - 1;
+        return sorted[Math.max (0, Math.min (i, sorted.length - 1))];
+    }
+
+    /**
+     * Print a usage message and exit.
+     */
+    private static void usage()
+    {
+        System.err.println ("Usage: java CaptureReplay <capturefile> <host> <port> <speed>|max");
+        System.exit (1);
+    }
+
+}
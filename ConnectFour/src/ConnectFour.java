@@ -1,4 +1,5 @@
 import java.io.*;
+import java.util.Arrays;
 
 /**
  * Main running class for the Connect Four game. Orchestrates the initiation of the game and the necessary components.
@@ -11,11 +12,15 @@ public class ConnectFour {
     /**
      * Main method that starts the application
      *
-     * @param args Host, Port, Player name
+     * @param args Optional -binary flag, Host, Port, Player name, optional opening book file
      * @throws Exception
      */
     public static void main(String[] args) throws Exception {
-        if (args.length != 3) usage();
+        boolean binary = args.length > 0 && args[0].equals("-binary");
+        if (binary) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length < 3 || args.length > 4) usage();
         String host = args[0];
         int port = Integer.parseInt(args[1]);
         String playerName = args[2];
@@ -23,10 +28,15 @@ public class ConnectFour {
         C4ModelController modelController = new C4ModelController(gameModel);
         C4Controller gameController = new C4Controller(playerName, new C4ServerConnection(host, port));
         gameController.addModelController(modelController);
+        gameController.useBinaryProtocol(binary);
 
         C4ViewController viewController = new C4ViewController(gameController);
+        viewController.addModelController(modelController);
+        if (args.length == 4) {
+            viewController.setOpeningBook(C4OpeningBook.open(args[3]));
+        }
 
-        C4UI gameView = new C4UI(gameModel, playerName, viewController);
+        C4UI gameView = new C4UI(modelController.getSnapshot(), playerName, viewController);
         modelController.addGameView(gameView);
         beginGame(gameController);
     }
@@ -46,7 +56,7 @@ public class ConnectFour {
      */
     private static void usage()
     {
-        System.err.println ("Usage: java ConnectFour <host> <port> <playername>");
+        System.err.println ("Usage: java ConnectFour [-binary] <host> <port> <playername> [<bookfile>]");
         System.exit (1);
     }
 }
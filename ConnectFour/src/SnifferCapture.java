@@ -0,0 +1,238 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Class SnifferCapture reads the binary traffic captures written by SocketSniffer.
+ * A capture file is a 16-byte header (magic, version, and the wall clock time
+ * in milliseconds when the capture started) followed by records, appended in the
+ * order the sniffer saw them. Each record is a <TT>long</TT> System.nanoTime()
+ * timestamp, an <TT>int</TT> connection number, a flags byte, a <TT>short</TT>
+ * length, and that many message bytes. A message is a text line, or, once the
+ * server has answered a client with <TT>binary</TT>, a C4BinaryProtocol frame
+ * with the BINARY flag. Connection events, such as <TT>[connected]</TT> and
+ * <TT>[closed]</TT>, are records with the NOTE flag.
+ * <P>
+ * A capture is read through a memory mapping, one record at a time, without
+ * copying it into the heap.
+ *
+ * @author  Alberto Scicali
+ * @version 0.1.0
+ */
+public class SnifferCapture
+{
+
+// Exported constants.
+
+    /**
+     * Flag set on records that travel from the client to the server.
+     */
+    public static final int FROM_CLIENT = 1;
+
+    /**
+     * Flag set on records that are connection events rather than messages.
+     */
+    public static final int NOTE = 2;
+
+    /**
+     * Flag set on message records that are C4BinaryProtocol frames rather than
+     * text lines.
+     */
+    public static final int BINARY = 4;
+
+// Hidden constants.
+
+    private static final int MAGIC = 0x43344350; // "C4CP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 15;
+
+// Hidden data members.
+
+    private final MappedByteBuffer buf;
+    private final long startMillis;
+
+    private long nanos;
+    private int conn;
+    private int flags;
+    private int offset;
+    private int length;
+
+// Exported constructors.
+
+    /**
+     * Open a capture file for reading.
+     *
+     * @param  path  Capture file name.
+     *
+     * @exception  IOException
+     *     Thrown if the file cannot be read or is not a capture.
+     */
+    public SnifferCapture
+    (String path)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open (Paths.get (path), StandardOpenOption.READ))
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException ("Capture too large to map: " + path);
+            buf = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buf.limit() < HEADER_SIZE || buf.getInt (0) != MAGIC || buf.getInt (4) != VERSION)
+            throw new IOException ("Not a capture file: " + path);
+        startMillis = buf.getLong (8);
+        buf.position (HEADER_SIZE);
+    }
+
+// Exported operations.
+
+    /**
+     * Advance to the next record.
+     *
+     * @return  True if there is a next record, false at the end of the
+     *          capture or at a record cut short by the sniffer being killed.
+     */
+    public boolean next()
+    {
+        int pos = buf.position();
+        if (buf.limit() - pos < RECORD_HEADER_SIZE)
+            return false;
+        int len = buf.getShort (pos + 13) & 0xffff;
+        if (buf.limit() - pos - RECORD_HEADER_SIZE < len)
+            return false;
+        nanos = buf.getLong (pos);
+        conn = buf.getInt (pos + 8);
+        flags = buf.get (pos + 12);
+        offset = pos + RECORD_HEADER_SIZE;
+        length = len;
+        buf.position (offset + len);
+        return true;
+    }
+
+    /**
+     * Go back to the first record.
+     */
+    public void rewind()
+    {
+        buf.position (HEADER_SIZE);
+    }
+
+    /**
+     * Returns the wall clock time when the capture started.
+     *
+     * @return  Milliseconds since the epoch.
+     */
+    public long getStartMillis()
+    {
+        return startMillis;
+    }
+
+    /**
+     * Returns the current record's timestamp.
+     *
+     * @return  System.nanoTime() when the sniffer read the message.
+     */
+    public long getNanos()
+    {
+        return nanos;
+    }
+
+    /**
+     * Returns the current record's connection number.
+     *
+     * @return  Connection number.
+     */
+    public int getConnection()
+    {
+        return conn;
+    }
+
+    /**
+     * Determine if the current record travels from the client to the server.
+     *
+     * @return  True if from the client, false if from the server.
+     */
+    public boolean isFromClient()
+    {
+        return (flags & FROM_CLIENT) != 0;
+    }
+
+    /**
+     * Determine if the current record is a connection event.
+     *
+     * @return  True if a connection event, false if a message.
+     */
+    public boolean isNote()
+    {
+        return (flags & NOTE) != 0;
+    }
+
+    /**
+     * Determine if the current record is a C4BinaryProtocol frame.
+     *
+     * @return  True if a binary frame, false if a text line or a note.
+     */
+    public boolean isBinary()
+    {
+        return (flags & BINARY) != 0;
+    }
+
+    /**
+     * Returns the length of the current record's message.
+     *
+     * @return  Number of bytes, including the newline for a text message.
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Copy the current record's message bytes.
+     *
+     * @param  dst  Array to copy into, at least getLength() bytes long.
+     */
+    public void getBytes
+    (byte[] dst)
+    {
+        for (int i = 0; i < length; ++ i)
+            dst[i] = buf.get (offset + i);
+    }
+
+// Hidden operations.
+
+    /**
+     * Write a capture file header.
+     */
+    static void writeHeader
+    (DataOutputStream out)
+            throws IOException
+    {
+        out.writeInt (MAGIC);
+        out.writeInt (VERSION);
+        out.writeLong (System.currentTimeMillis());
+    }
+
+    /**
+     * Write a capture record.
+     */
+    static void writeRecord
+    (DataOutputStream out,
+     long nanos,
+     int conn,
+     int flags,
+     byte[] msg,
+     int len)
+            throws IOException
+    {
+        out.writeLong (nanos);
+        out.writeInt (conn);
+        out.writeByte (flags);
+        out.writeShort (len);
+        out.write (msg, 0, len);
+    }
+
+}
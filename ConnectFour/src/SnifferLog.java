@@ -0,0 +1,407 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class SnifferLog is an asynchronous message log for the SocketSniffer program.
+ * The forwarding thread copies each message into a lock-free single-producer,
+ * single-consumer ring buffer and carries on; a background writer thread drains
+ * the ring in batches, formats the messages the way SocketSniffer prints them,
+ * and appends them to a log file, starting a new file when the current one
+ * reaches a size limit. If the ring is full the message is dropped and counted
+ * rather than making the forwarding thread wait.
+ * <P>
+ * A SnifferLog can instead write a binary capture, in the format read by
+ * SnifferCapture, recording every message with its timestamp, connection id and
+ * direction so that the traffic can be replayed.
+ *
+ * @author  Alberto Scicali
+ * @version 0.1.0
+ */
+public class SnifferLog
+        extends Thread
+{
+
+// Hidden constants.
+
+    // Record header: length, connection, flags, timestamp.
+    private static final int HEADER = 17;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+// Hidden data members.
+
+    private final byte[] ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();  // Next byte to read.
+    private final AtomicLong tail = new AtomicLong();  // Next byte to write.
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closing;
+
+    private final String path;
+    private final boolean capture;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private DataOutputStream out;
+    private long fileBytes;
+
+    private final StringBuilder line = new StringBuilder();
+    private byte[] record = new byte [1024];
+    private final C4Message frame = new C4Message();
+
+// Exported constructors.
+
+    /**
+     * Construct a new sniffer log that writes text. The log's writer thread
+     * must be started before messages are logged.
+     *
+     * @param  path          Log file name.
+     * @param  ringBytes     Ring buffer capacity in bytes, rounded up to a
+     *                       power of 2.
+     * @param  maxFileBytes  Size at which the log file is rotated.
+     * @param  maxFiles      Number of rotated files to keep besides the
+     *                       current one.
+     *
+     * @exception  IOException
+     *     Thrown if the log file cannot be opened.
+     */
+    public SnifferLog
+    (String path,
+     int ringBytes,
+     long maxFileBytes,
+     int maxFiles)
+            throws IOException
+    {
+        this (path, ringBytes, maxFileBytes, maxFiles, false);
+    }
+
+    /**
+     * Construct a new sniffer log that writes a binary capture. A capture file
+     * is never rotated; if it already exists, it is replaced.
+     *
+     * @param  path       Capture file name.
+     * @param  ringBytes  Ring buffer capacity in bytes, rounded up to a power
+     *                    of 2.
+     *
+     * @exception  IOException
+     *     Thrown if the capture file cannot be opened.
+     */
+    public SnifferLog
+    (String path,
+     int ringBytes)
+            throws IOException
+    {
+        this (path, ringBytes, Long.MAX_VALUE, 0, true);
+    }
+
+    private SnifferLog
+    (String path,
+     int ringBytes,
+     long maxFileBytes,
+     int maxFiles,
+     boolean capture)
+            throws IOException
+    {
+        super (capture ? "SnifferCapture" : "SnifferLog");
+        setDaemon (true);
+        int capacity = Integer.highestOneBit (Math.max (ringBytes, 4096) - 1) << 1;
+        this.ring = new byte [capacity];
+        this.mask = capacity - 1;
+        this.path = path;
+        this.capture = capture;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        openFile();
+    }
+
+// Exported operations.
+
+    /**
+     * Log a message read from a connection. Must only be called from one
+     * thread.
+     *
+     * @param  conn        Connection identifier: the client's port number for
+     *                     a text log, a connection number for a capture.
+     * @param  fromClient  True if the message came from the client, false if
+     *                     from the server.
+     * @param  buf         Message bytes, including the terminating newline.
+     * @param  off         Index of the first message byte.
+     * @param  len         Number of message bytes.
+     *
+     * @return  True if the message was logged, false if it was dropped
+     *          because the ring buffer was full.
+     */
+    public boolean logMessage
+    (int conn,
+     boolean fromClient,
+     byte[] buf,
+     int off,
+     int len)
+    {
+        return logMessage (conn, fromClient, false, buf, off, len);
+    }
+
+    /**
+     * Log a message read from a connection, which may be a text line or a
+     * C4BinaryProtocol frame. Must only be called from one thread.
+     *
+     * @param  conn        Connection identifier, as for logMessage().
+     * @param  fromClient  True if the message came from the client, false if
+     *                     from the server.
+     * @param  binary      True if the message is a binary frame, false if a
+     *                     text line.
+     * @param  buf         Message bytes.
+     * @param  off         Index of the first message byte.
+     * @param  len         Number of message bytes.
+     *
+     * @return  True if the message was logged, false if it was dropped
+     *          because the ring buffer was full.
+     */
+    public boolean logMessage
+    (int conn,
+     boolean fromClient,
+     boolean binary,
+     byte[] buf,
+     int off,
+     int len)
+    {
+        return put (conn, (fromClient ? SnifferCapture.FROM_CLIENT : 0) | (binary ? SnifferCapture.BINARY : 0),
+                buf, off, len);
+    }
+
+    /**
+     * Log a note about a connection, such as "[connected]". Must only be
+     * called from the same thread as logMessage().
+     *
+     * @param  conn        Connection identifier, as for logMessage().
+     * @param  fromClient  True for the client-to-server direction.
+     * @param  note        Note text.
+     */
+    public void logNote
+    (int conn,
+     boolean fromClient,
+     String note)
+    {
+        byte[] b = note.getBytes (StandardCharsets.US_ASCII);
+        put (conn, SnifferCapture.NOTE | (fromClient ? SnifferCapture.FROM_CLIENT : 0), b, 0, b.length);
+    }
+
+    /**
+     * Returns the number of messages dropped because the ring buffer was full.
+     *
+     * @return  Dropped message count.
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Write out everything logged so far and stop the writer thread.
+     *
+     * @exception  InterruptedException
+     *     Thrown if interrupted while waiting for the writer thread.
+     */
+    public void close()
+            throws InterruptedException
+    {
+        closing = true;
+        LockSupport.unpark (this);
+        join();
+    }
+
+    /**
+     * Run the writer thread.
+     */
+    public void run()
+    {
+        try
+        {
+            for (;;)
+            {
+                boolean done = closing;
+                if (drain() > 0)
+                {
+                    out.flush();
+                }
+                else if (done)
+                {
+                    break;
+                }
+                else
+                {
+                    LockSupport.parkNanos (1000000L);
+                }
+            }
+            out.close();
+        }
+        catch (IOException exc)
+        {
+            exc.printStackTrace (System.err);
+        }
+    }
+
+// Hidden operations.
+
+    /**
+     * Copy a record into the ring buffer.
+     */
+    private boolean put
+    (int conn,
+     int flags,
+     byte[] buf,
+     int off,
+     int len)
+    {
+        long t = tail.get();
+        if (HEADER + len > ring.length - (t - head.get()))
+        {
+            dropped.incrementAndGet();
+            return false;
+        }
+        putInt (t, len);
+        putInt (t + 4, conn);
+        ring[(int) (t + 8) & mask] = (byte) flags;
+        long now = System.nanoTime();
+        putInt (t + 9, (int) (now >>> 32));
+        putInt (t + 13, (int) now);
+        int start = (int) (t + HEADER) & mask;
+        int first = Math.min (len, ring.length - start);
+        System.arraycopy (buf, off, ring, start, first);
+        System.arraycopy (buf, off + first, ring, 0, len - first);
+        tail.lazySet (t + HEADER + len);
+        return true;
+    }
+
+    /**
+     * Format and write every record in the ring buffer.
+     *
+     * @return  Number of records written.
+     */
+    private int drain()
+            throws IOException
+    {
+        long h = head.get();
+        long t = tail.get();
+        int n = 0;
+        while (h < t)
+        {
+            int len = getInt (h);
+            int conn = getInt (h + 4);
+            int flags = ring[(int) (h + 8) & mask];
+            long nanos = ((long) getInt (h + 9) << 32) | (getInt (h + 13) & 0xffffffffL);
+            if (record.length < len)
+                record = new byte [Math.max (len, 2*record.length)];
+            int start = (int) (h + HEADER) & mask;
+            int first = Math.min (len, ring.length - start);
+            System.arraycopy (ring, start, record, 0, first);
+            System.arraycopy (ring, 0, record, first, len - first);
+            h += HEADER + len;
+            head.lazySet (h);
+            if (capture)
+                SnifferCapture.writeRecord (out, nanos, conn, flags, record, len);
+            else
+                format (conn, flags, len);
+            ++ n;
+        }
+        return n;
+    }
+
+    /**
+     * Format the record in the record buffer as SocketSniffer prints it and
+     * write it to the log file.
+     */
+    private void format
+    (int clientPort,
+     int flags,
+     int len)
+            throws IOException
+    {
+        line.setLength (0);
+        line.append (clientPort)
+                .append ((flags & SnifferCapture.FROM_CLIENT) != 0 ? " --> " : " <-- ");
+        if ((flags & SnifferCapture.NOTE) != 0)
+        {
+            line.append (new String (record, 0, len, StandardCharsets.US_ASCII));
+        }
+        else
+        {
+            if ((flags & SnifferCapture.BINARY) != 0)
+            {
+                C4BinaryProtocol.decode (record, 0, len, frame,
+                        (flags & SnifferCapture.FROM_CLIENT) == 0);
+                line.append (frame);
+            }
+            else
+            {
+                line.append (new String (record, 0, Math.max (len - 1, 0), StandardCharsets.UTF_8));
+            }
+            line.append ("    (hex");
+            for (int i = 0; i < len; ++ i)
+                line.append (' ')
+                        .append (HEX[(record[i] >> 4) & 0xf])
+                        .append (HEX[record[i] & 0xf]);
+            line.append (')');
+        }
+        line.append (System.lineSeparator());
+        if (fileBytes + line.length() > maxFileBytes)
+            rotate();
+        for (int i = 0; i < line.length(); ++ i)
+            out.write (line.charAt (i));
+        fileBytes += line.length();
+    }
+
+    /**
+     * Close the current log file, shift the old files up by one, and open a
+     * new current file.
+     */
+    private void rotate()
+            throws IOException
+    {
+        out.close();
+        new File (path + "." + maxFiles) .delete();
+        for (int i = maxFiles - 1; i >= 1; -- i)
+            new File (path + "." + i) .renameTo (new File (path + "." + (i + 1)));
+        if (maxFiles > 0)
+            new File (path) .renameTo (new File (path + ".1"));
+        openFile();
+    }
+
+    /**
+     * Open the current log file for appending, or create the capture file.
+     */
+    private void openFile()
+            throws IOException
+    {
+        File file = new File (path);
+        fileBytes = capture ? 0 : file.length();
+        out = new DataOutputStream
+                (new BufferedOutputStream
+                        (new FileOutputStream (file, ! capture), 1 << 16));
+        if (capture)
+            SnifferCapture.writeHeader (out);
+    }
+
+    private void putInt
+    (long pos,
+     int v)
+    {
+        for (int i = 0; i < 4; ++ i)
+            ring[(int) (pos + i) & mask] = (byte) (v >>> (24 - 8*i));
+    }
+
+    private int getInt
+    (long pos)
+    {
+        int v = 0;
+        for (int i = 0; i < 4; ++ i)
+            v = (v << 8) | (ring[(int) (pos + i) & mask] & 0xff);
+        return v;
+    }
+
+}
@@ -30,16 +30,25 @@ import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
 
 /**
  * Class SocketSniffer is a program that displays the data going back and forth
  * on a socket connection between client(s) and a server. The SocketSniffer
  * program assumes the protocol uses a textual encoding, where each message is a
- * text string terminated with a newline. The SocketSniffer program prints the
- * contents of each message on the console.
+ * text string terminated with a newline, until the server answers a client with
+ * the line <TT>binary</TT>; from then on, each message in either direction of
+ * that connection is a C4BinaryProtocol frame, which is printed decoded. The
+ * SocketSniffer program prints the contents of each message on the console.
  * <P>
- * Usage: <TT>java SocketSniffer <I>serverhost</I> <I>serverport</I>
- * <I>snifferhost</I> <I>snifferport</I></TT>
+ * Usage: <TT>java SocketSniffer [-fast <I>logfile</I>] [-capture
+ * <I>capturefile</I>] <I>serverhost</I> <I>serverport</I> <I>snifferhost</I>
+ * <I>snifferport</I></TT>
  * <P>
  * The server is listening for connections to the given <I>serverhost</I> and
  * <I>serverport</I>. The SocketSniffer program is listening for connections to
@@ -47,6 +56,17 @@ import java.net.Socket;
  * to the SocketSniffer rather than to the server. The SocketSniffer will then
  * connect to the server and forward all messages from the client to the server
  * and vice versa.
+ * <P>
+ * With the <TT>-fast</TT> option, the SocketSniffer forwards all connections on
+ * one thread with non-blocking channels and bulk buffers, and writes the
+ * messages to the given <I>logfile</I> through a SnifferLog instead of the
+ * console, so that it can stay in the path under load.
+ * <P>
+ * With the <TT>-capture</TT> option, the SocketSniffer also forwards in fast
+ * mode and records every message, with its timestamp, connection number and
+ * direction, in the given <I>capturefile</I> in the binary format read by
+ * SnifferCapture. The CaptureReplay program plays a capture back against a
+ * server. The two options may be given together.
  *
  * @author  Alan Kaminsky
  * @version 08-Jul-2015
@@ -58,6 +78,11 @@ public class SocketSniffer
     private static InetSocketAddress serverAddress;
     private static InetSocketAddress snifferAddress;
 
+    // Fast mode log settings.
+    private static final int FAST_RING_BYTES = 16 << 20;
+    private static final long FAST_FILE_BYTES = 64L << 20;
+    private static final int FAST_FILES = 5;
+
     /**
      * Class ForwardingThread forwards messages from a client to a server or
      * vice versa.
@@ -73,6 +98,8 @@ public class SocketSniffer
         private Socket fromSocket;
         private Socket toSocket;
         private boolean fromClient;
+        private ForwardingThread peer;
+        private volatile boolean binary;
         private InputStream in;
         private OutputStream out;
         private int clientPort;
@@ -114,13 +141,24 @@ public class SocketSniffer
                 int b;
                 while ((b = in.read()) != -1)
                 {
-                    out.write (b);
                     if (len < MAX)
                         buf[len++] = (byte)b;
-                    if (b == '\n')
+                    boolean frame = binary;
+                    boolean end = frame ?
+                        C4BinaryProtocol.frameLength (buf, 0, len) != 0 :
+                        b == '\n';
+                    // Switch before the client sees the answer and sends frames.
+                    if (end && ! frame && ! fromClient &&
+                            C4BinaryProtocol.isBinaryAnswer (buf, 0, len - 1))
+                    {
+                        binary = true;
+                        peer.binary = true;
+                    }
+                    out.write (b);
+                    if (end)
                     {
                         out.flush();
-                        printBuffer();
+                        printBuffer (frame);
                         len = 0;
                     }
                 }
@@ -159,14 +197,26 @@ public class SocketSniffer
 
         /**
          * Print the buffer as a string and in hex.
+         *
+         * @param  frame  True if the buffer holds a binary frame, false if a
+         *                text line.
          */
-        private void printBuffer()
+        private void printBuffer
+        (boolean frame)
         {
+            String text;
+            if (frame)
+            {
+                C4Message msg = new C4Message();
+                C4BinaryProtocol.decode (buf, 0, len, msg, ! fromClient);
+                text = msg.toString();
+            }
+            else
+                text = new String (buf, 0, len - 1);
             synchronized (System.out)
             {
                 System.out.printf ("%d %s %s    (hex",
-                        clientPort, fromClient ? "-->" : "<--",
-                        new String (buf, 0, len - 1));
+                        clientPort, fromClient ? "-->" : "<--", text);
                 for (int i = 0; i < len; ++ i)
                     System.out.printf (" %02x", buf[i]);
                 System.out.printf (")%n");
@@ -174,6 +224,301 @@ public class SocketSniffer
         }
     }
 
+    /**
+     * Class FastForwarder forwards messages for all connections on one thread
+     * with non-blocking channels, logging them to a text SnifferLog, a capture
+     * SnifferLog, or both.
+     *
+     * @author  Alberto Scicali
+     * @version 0.1.0
+     */
+    private static class FastForwarder
+    {
+        private static final int BUF_SIZE = 64*1024;
+        private static final int MAX = 1024;
+
+        private SnifferLog log;
+        private SnifferLog capture;
+        private Selector selector;
+        private int connCount;
+
+        /**
+         * Construct a new fast forwarder.
+         *
+         * @param  log      Text log to write messages to, or null.
+         * @param  capture  Capture to record messages in, or null.
+         */
+        public FastForwarder
+        (SnifferLog log,
+         SnifferLog capture)
+                throws IOException
+        {
+            this.log = log;
+            this.capture = capture;
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Accept and forward connections until the program is killed.
+         */
+        public void run()
+                throws IOException
+        {
+            if (log != null)
+                log.start();
+            if (capture != null)
+                capture.start();
+            ServerSocketChannel acceptor = ServerSocketChannel.open();
+            acceptor.bind (snifferAddress);
+            acceptor.configureBlocking (false);
+            acceptor.register (selector, SelectionKey.OP_ACCEPT);
+            for (;;)
+            {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (! key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                    {
+                        accept (acceptor);
+                        continue;
+                    }
+                    Endpoint e = (Endpoint) key.attachment();
+                    try
+                    {
+                        if (key.isConnectable())
+                            connected (e);
+                        if (key.isValid() && key.isReadable())
+                            read (e);
+                        if (key.isValid() && key.isWritable())
+                            write (e);
+                    }
+                    catch (IOException exc)
+                    {
+                        note (e, e.fromClient, "[exception] " + exc);
+                        close (e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Accept a client connection and start connecting to the server.
+         */
+        private void accept
+        (ServerSocketChannel acceptor)
+                throws IOException
+        {
+            SocketChannel clientChannel = acceptor.accept();
+            if (clientChannel == null)
+                return;
+            SocketChannel serverChannel = SocketChannel.open();
+            clientChannel.configureBlocking (false);
+            serverChannel.configureBlocking (false);
+            int clientPort = clientChannel.socket().getPort();
+            int conn = ++ connCount;
+            Endpoint client = new Endpoint (clientChannel, true, clientPort, conn);
+            Endpoint server = new Endpoint (serverChannel, false, clientPort, conn);
+            client.peer = server;
+            server.peer = client;
+            client.connected = true;
+            client.key = clientChannel.register (selector, 0, client);
+            server.key = serverChannel.register (selector, 0, server);
+            try
+            {
+                if (serverChannel.connect (serverAddress))
+                    connected (server);
+                else
+                    server.key.interestOps (SelectionKey.OP_CONNECT);
+            }
+            catch (IOException exc)
+            {
+                note (client, true, "[exception] " + exc);
+                close (client);
+            }
+        }
+
+        /**
+         * Finish connecting to the server and start forwarding.
+         */
+        private void connected
+        (Endpoint server)
+                throws IOException
+        {
+            server.channel.finishConnect();
+            server.connected = true;
+            note (server, true, "[connected]");
+            note (server, false, "[connected]");
+            updateInterest (server);
+            updateInterest (server.peer);
+        }
+
+        /**
+         * Read from an endpoint, log any complete messages, and forward the
+         * bytes to its peer. Bytes are framed as text lines until the server's
+         * <TT>binary</TT> answer, and as binary frames after it.
+         */
+        private void read
+        (Endpoint e)
+                throws IOException
+        {
+            int start = e.buf.position();
+            int n = e.channel.read (e.buf);
+            if (n == -1)
+            {
+                close (e);
+                return;
+            }
+            byte[] b = e.buf.array();
+            for (int i = start; i < start + n; ++ i)
+            {
+                if (e.len < MAX)
+                    e.line[e.len++] = b[i];
+                if (e.binary ?
+                        C4BinaryProtocol.frameLength (e.line, 0, e.len) != 0 :
+                        b[i] == '\n')
+                {
+                    message (e);
+                    // Frame the rest of this read, and whatever the client
+                    // sends from now on, as binary.
+                    if (! e.binary && ! e.fromClient &&
+                            C4BinaryProtocol.isBinaryAnswer (e.line, 0, e.len - 1))
+                    {
+                        e.binary = true;
+                        e.peer.binary = true;
+                    }
+                    e.len = 0;
+                }
+            }
+            e.buf.flip();
+            e.peer.channel.write (e.buf);
+            if (e.buf.hasRemaining())
+                e.pending = true;
+            else
+                e.buf.clear();
+            updateInterest (e);
+            updateInterest (e.peer);
+        }
+
+        /**
+         * Write bytes waiting for an endpoint that its peer sent earlier.
+         */
+        private void write
+        (Endpoint e)
+                throws IOException
+        {
+            Endpoint from = e.peer;
+            e.channel.write (from.buf);
+            if (! from.buf.hasRemaining())
+            {
+                from.buf.clear();
+                from.pending = false;
+            }
+            updateInterest (e);
+            updateInterest (from);
+        }
+
+        /**
+         * Read from an endpoint only when its peer can take the bytes, and
+         * wait to write to it only when its peer has bytes waiting.
+         */
+        private void updateInterest
+        (Endpoint e)
+        {
+            if (! e.key.isValid() || ! e.connected)
+                return;
+            int ops = 0;
+            if (e.peer.connected && ! e.pending)
+                ops |= SelectionKey.OP_READ;
+            if (e.peer.pending)
+                ops |= SelectionKey.OP_WRITE;
+            e.key.interestOps (ops);
+        }
+
+        /**
+         * Close both ends of a connection.
+         */
+        private void close
+        (Endpoint e)
+        {
+            if (! e.channel.isOpen())
+                return;
+            note (e, e.fromClient, "[closed]");
+            note (e, ! e.fromClient, "[closed]");
+            try { e.channel.close(); } catch (IOException exc) { }
+            try { e.peer.channel.close(); } catch (IOException exc) { }
+        }
+
+        /**
+         * Log the endpoint's current message. The text log identifies the
+         * connection by the client's port, the capture by its connection
+         * number.
+         */
+        private void message
+        (Endpoint e)
+        {
+            if (log != null)
+                log.logMessage (e.clientPort, e.fromClient, e.binary, e.line, 0, e.len);
+            if (capture != null)
+                capture.logMessage (e.conn, e.fromClient, e.binary, e.line, 0, e.len);
+        }
+
+        /**
+         * Log a note about the endpoint's connection.
+         */
+        private void note
+        (Endpoint e,
+         boolean fromClient,
+         String text)
+        {
+            if (log != null)
+                log.logNote (e.clientPort, fromClient, text);
+            if (capture != null)
+                capture.logNote (e.conn, fromClient, text);
+        }
+    }
+
+    /**
+     * Class Endpoint holds the forwarding state of one socket of a sniffed
+     * connection.
+     *
+     * @author  Alberto Scicali
+     * @version 0.1.0
+     */
+    private static class Endpoint
+    {
+        SocketChannel channel;
+        SelectionKey key;
+        Endpoint peer;
+        boolean fromClient;      // True if bytes read here come from the client.
+        int clientPort;
+        int conn;                // Connection number, for the capture.
+        boolean connected;
+        ByteBuffer buf;          // Bytes read here, not yet written to the peer.
+        boolean pending;         // True if buf holds unwritten bytes.
+        boolean binary;          // True once messages are C4BinaryProtocol frames.
+        byte[] line;             // Current message, for the log.
+        int len;
+
+        Endpoint
+        (SocketChannel channel,
+         boolean fromClient,
+         int clientPort,
+         int conn)
+        {
+            this.channel = channel;
+            this.fromClient = fromClient;
+            this.clientPort = clientPort;
+            this.conn = conn;
+            this.buf = ByteBuffer.allocate (FastForwarder.BUF_SIZE);
+            this.line = new byte [FastForwarder.MAX];
+        }
+    }
+
     /**
      * Main program.
      */
@@ -182,12 +527,39 @@ public class SocketSniffer
             throws Exception
     {
         // Parse command line arguments.
-        if (args.length != 4) usage();
+        String logFile = null;
+        String captureFile = null;
+        int a = 0;
+        while (a + 1 < args.length && args[a].startsWith ("-"))
+        {
+            if (args[a].equals ("-fast") && logFile == null)
+                logFile = args[a+1];
+            else if (args[a].equals ("-capture") && captureFile == null)
+                captureFile = args[a+1];
+            else
+                usage();
+            a += 2;
+        }
+        if (args.length - a != 4) usage();
+        String[] rest = new String [4];
+        System.arraycopy (args, a, rest, 0, 4);
+        args = rest;
         serverAddress = new InetSocketAddress
                 (args[0], Integer.parseInt (args[1]));
         snifferAddress = new InetSocketAddress
                 (args[2], Integer.parseInt (args[3]));
 
+        if (logFile != null || captureFile != null)
+        {
+            new FastForwarder
+                    (logFile == null ? null :
+                        new SnifferLog (logFile, FAST_RING_BYTES, FAST_FILE_BYTES, FAST_FILES),
+                     captureFile == null ? null :
+                        new SnifferLog (captureFile, FAST_RING_BYTES))
+                    .run();
+            return;
+        }
+
         // Listen for connections from clients.
         ServerSocket snifferSocket = new ServerSocket();
         snifferSocket.bind (snifferAddress);
@@ -202,6 +574,7 @@ public class SocketSniffer
                     (clientSocket, serverSocket, true);
             ForwardingThread s2c = new ForwardingThread
                     (serverSocket, clientSocket, false);
+            s2c.peer = c2s;
             c2s.start();
             s2c.start();
         }
@@ -212,7 +585,7 @@ public class SocketSniffer
      */
     private static void usage()
     {
-        System.err.println ("Usage: java SocketSniffer <serverhost> <serverport> <snifferhost> <snifferport>");
+        System.err.println ("Usage: java SocketSniffer [-fast <logfile>] [-capture <capturefile>] <serverhost> <serverport> <snifferhost> <snifferport>");
         System.exit (1);
     }
 
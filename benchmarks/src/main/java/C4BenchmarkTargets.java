@@ -0,0 +1,271 @@
+import c4bench.Workload;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * The operations timed by the c4bench benchmarks, written against the connect four classes.
+ * Every workload is built from a seed, so each run of the benchmarks times the same games.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public class C4BenchmarkTargets {
+
+    /**
+     * Creates a workload
+     * @param name addPlayerToken, checkForBoardFill, processMessage, paintComponent, paintCell
+     *             or randomPlayout
+     * @param seed Seed for the games the workload plays
+     * @return The workload
+     */
+    public static Workload create (String name, long seed) {
+        switch (name) {
+            case "addPlayerToken":
+                return new AddTokens(randomGame(seed));
+            case "checkForBoardFill":
+                return new BoardFill(randomGame(seed));
+            case "processMessage":
+                return new ProcessMessages(randomGame(seed));
+            case "paintComponent":
+                return new PaintBoard(randomGame(seed));
+            case "paintCell":
+                return new PaintCell(randomGame(seed));
+            case "randomPlayout":
+                return new RandomPlayouts(seed);
+            default:
+                throw new IllegalArgumentException("Unknown workload: " + name);
+        }
+    }
+
+    /**
+     * Plays random legal moves until the game is won or the board is full
+     * @param seed Random seed
+     * @return Columns played, in order
+     */
+    private static int[] randomGame (long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        C4Model model = new C4Model();
+        int[] columns = new int[C4BoardIntf.ROWS * C4BoardIntf.COLS];
+        int n = 0;
+        while (model.hasWon() == null && !model.isBoardFull()) {
+            int c = randomColumn(model, random);
+            model.play(c);
+            columns[n++] = c;
+        }
+        return Arrays.copyOf(columns, n);
+    }
+
+    /**
+     * Picks a random legal column
+     * @param model Board, not full
+     * @param random Random source
+     * @return Column
+     */
+    private static int randomColumn (C4Model model, SplittableRandom random) {
+        int legal = model.getLegalColumns();
+        int pick = random.nextInt(Integer.bitCount(legal));
+        for (int c = 0; ; c++) {
+            if ((legal & (1 << c)) != 0 && pick-- == 0) {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Plays a game on a new board
+     * @param columns Columns played, in order
+     * @return The board
+     */
+    private static C4Model replay (int[] columns) {
+        C4Model model = new C4Model();
+        for (int c : columns) {
+            model.play(c);
+        }
+        return model;
+    }
+
+    /**
+     * Places every piece of a game with addPlayerToken, which checks each one for a win,
+     * then clears the board
+     */
+    private static class AddTokens implements Workload {
+        private final C4Model model = new C4Model();
+        private final int[] players;
+        private final int[] rows;
+        private final int[] columns;
+
+        AddTokens (int[] game) {
+            columns = game;
+            players = new int[game.length];
+            rows = new int[game.length];
+            C4Model scratch = new C4Model();
+            for (int i = 0; i < game.length; i++) {
+                players[i] = scratch.getCurrentPlayer();
+                rows[i] = scratch.play(game[i]);
+            }
+        }
+
+        public long run () {
+            for (int i = 0; i < columns.length; i++) {
+                model.addPlayerToken(players[i], rows[i], columns[i]);
+            }
+            long won = model.hasWon() != null ? 1 : 0;
+            model.clearBoard();
+            return won;
+        }
+    }
+
+    /**
+     * Checks a half-played board for a fill
+     */
+    private static class BoardFill implements Workload {
+        private final C4Model model;
+
+        BoardFill (int[] game) {
+            model = replay(Arrays.copyOf(game, game.length / 2));
+        }
+
+        public long run () {
+            return model.checkForBoardFill() ? 1 : 0;
+        }
+    }
+
+    /**
+     * Feeds a client controller the messages a server sends for a whole game, decoding each
+     * one from bytes and applying it to a model without a view
+     */
+    private static class ProcessMessages implements Workload {
+        private final C4Controller controller;
+        private final C4Message message = new C4Message();
+        private final byte[] bytes;
+        private final int[] starts;
+
+        ProcessMessages (int[] game) {
+            controller = new C4Controller("alice", null);
+            controller.addModelController(new C4ModelController(new C4Model()));
+            ArrayList<String> list = new ArrayList<>();
+            list.add(C4Messages.NUMBER + " 1");
+            list.add(C4Messages.NAME + " 1 alice");
+            list.add(C4Messages.NAME + " 2 bob");
+            list.add(C4Messages.TURN + " 1");
+            C4Model scratch = new C4Model();
+            for (int c : game) {
+                int p = scratch.getCurrentPlayer();
+                int r = scratch.play(c);
+                list.add(C4Messages.ADD + " " + p + " " + r + " " + c);
+                list.add(C4Messages.TURN + " " + (3 - p));
+            }
+            list.add(C4Messages.TURN + " 0");
+            list.add(C4Messages.CLEAR);
+            StringBuilder text = new StringBuilder();
+            starts = new int[list.size() + 1];
+            for (int i = 0; i < list.size(); i++) {
+                starts[i] = text.length();
+                text.append(list.get(i)).append('\n');
+            }
+            starts[list.size()] = text.length();
+            bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        public long run () {
+            long sum = 0;
+            for (int i = 0; i + 1 < starts.length; i++) {
+                C4MessageParser.parse(bytes, starts[i], starts[i + 1] - starts[i] - 1, message);
+                sum += controller.processMessage(message).ordinal();
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Paints a finished game, with its win line, into an offscreen image
+     */
+    private static class PaintBoard implements Workload {
+        private final C4Panel panel;
+        private final BufferedImage image;
+
+        PaintBoard (int[] game) {
+            panel = new C4Panel(replay(game));
+            Dimension size = panel.getPreferredSize();
+            panel.setSize(size);
+            image = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        }
+
+        public long run () {
+            Graphics2D g = image.createGraphics();
+            try {
+                panel.paintComponent(g);
+            } finally {
+                g.dispose();
+            }
+            return image.getRGB(image.getWidth() / 2, image.getHeight() / 2);
+        }
+    }
+
+    /**
+     * Paints a finished game with a cached-mode C4Panel one changed cell at a time, as after
+     * each move, going round the game's moves
+     */
+    private static class PaintCell implements Workload {
+        private final C4Panel panel;
+        private final BufferedImage image;
+        private final int[] rows;
+        private final int[] columns;
+        private final int cellSize;
+        private int next;
+
+        PaintCell (int[] game) {
+            panel = new C4Panel(replay(game), true);
+            Dimension size = panel.getPreferredSize();
+            panel.setSize(size);
+            image = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+            cellSize = size.width / C4BoardIntf.COLS;
+            columns = game;
+            rows = new int[game.length];
+            C4Model scratch = new C4Model();
+            for (int i = 0; i < game.length; i++) {
+                rows[i] = scratch.play(game[i]);
+            }
+        }
+
+        public long run () {
+            int r = rows[next];
+            int c = columns[next];
+            next = (next + 1) % columns.length;
+            panel.repaintCell(r, c);
+            Graphics2D g = image.createGraphics();
+            try {
+                g.clipRect(c * cellSize, r * cellSize, cellSize, cellSize);
+                panel.paintComponent(g);
+            } finally {
+                g.dispose();
+            }
+            return image.getRGB(c * cellSize + cellSize / 2, r * cellSize + cellSize / 2);
+        }
+    }
+
+    /**
+     * Plays a random game from the empty board to a win or a full board
+     */
+    private static class RandomPlayouts implements Workload {
+        private final C4Model model = new C4Model();
+        private final SplittableRandom random;
+
+        RandomPlayouts (long seed) {
+            random = new SplittableRandom(seed);
+        }
+
+        public long run () {
+            model.clearBoard();
+            while (model.hasWon() == null && !model.isBoardFull()) {
+                model.play(randomColumn(model, random));
+            }
+            return model.getMoveCount();
+        }
+    }
+}
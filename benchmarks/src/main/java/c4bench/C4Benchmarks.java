@@ -0,0 +1,118 @@
+package c4bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the connect four hot paths: placing pieces and checking for wins,
+ * checking for a full board, processing server messages in the client, painting the
+ * whole board or just a changed cell, and playing whole random games.
+ * <P>
+ * Build and run from the project root:
+ * <PRE>
+ * mvn -B package
+ * java -jar benchmarks/target/benchmarks.jar -rf json -rff results.json
+ * </PRE>
+ * <TT>-rf json</TT> writes the results as JSON, so that runs of different releases can
+ * be compared. Any JMH option works as usual, for example a benchmark name pattern to
+ * run only some of them.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class C4Benchmarks {
+
+    private static final long SEED = 20160509L;
+
+    private Workload addTokens;
+    private Workload boardFill;
+    private Workload processMessages;
+    private Workload paintBoard;
+    private Workload paintCells;
+    private Workload randomPlayouts;
+
+    @Setup
+    public void setup () throws ReflectiveOperationException {
+        addTokens = workload("addPlayerToken");
+        boardFill = workload("checkForBoardFill");
+        processMessages = workload("processMessage");
+        paintBoard = workload("paintComponent");
+        paintCells = workload("paintCell");
+        randomPlayouts = workload("randomPlayout");
+    }
+
+    /**
+     * Places every piece of a game with C4Model.addPlayerToken, then clears the board
+     */
+    @Benchmark
+    public long addPlayerToken () {
+        return addTokens.run();
+    }
+
+    /**
+     * Calls C4Model.checkForBoardFill on a half-played board
+     */
+    @Benchmark
+    public long checkForBoardFill () {
+        return boardFill.run();
+    }
+
+    /**
+     * Decodes the server messages of a whole game with C4MessageParser and runs
+     * C4Controller.processMessage on each
+     */
+    @Benchmark
+    public long processMessage () {
+        return processMessages.run();
+    }
+
+    /**
+     * Paints a finished game with C4Panel.paintComponent into an offscreen image
+     */
+    @Benchmark
+    public long paintComponent () {
+        return paintBoard.run();
+    }
+
+    /**
+     * Redraws one changed cell with a cached-mode C4Panel and paints just that cell
+     */
+    @Benchmark
+    public long paintCell () {
+        return paintCells.run();
+    }
+
+    /**
+     * Plays a random game from the empty board to the end
+     */
+    @Benchmark
+    public long randomPlayout () {
+        return randomPlayouts.run();
+    }
+
+    /**
+     * Creates a workload from C4BenchmarkTargets, which is in the unnamed package
+     * @param name Workload name
+     * @return The workload
+     */
+    private static Workload workload (String name) throws ReflectiveOperationException {
+        return (Workload) Class.forName("C4BenchmarkTargets")
+                .getMethod("create", String.class, long.class)
+                .invoke(null, name, SEED);
+    }
+}
@@ -0,0 +1,21 @@
+package c4bench;
+
+/**
+ * An operation on the connect four classes that a benchmark times.
+ * <P>
+ * The connect four classes live in the unnamed package, which code in a named package
+ * cannot refer to, and JMH does not accept benchmarks in the unnamed package. So the
+ * operations are written in C4BenchmarkTargets, in the unnamed package, and handed to
+ * the benchmarks through this interface.
+ *
+ * @author Alberto Scicali
+ * @version 0.1.0
+ */
+public interface Workload {
+
+    /**
+     * Performs the operation once
+     * @return A value depending on the operation's result, for the benchmark to consume
+     */
+    long run ();
+}